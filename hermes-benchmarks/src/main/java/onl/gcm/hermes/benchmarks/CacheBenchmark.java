@@ -0,0 +1,93 @@
+package onl.gcm.hermes.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+import onl.gcm.hermes.dto.DistantWorldDTO;
+import onl.gcm.hermes.server.ResponseEntityCache;
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+
+// ResponseEntityCache under contention. Keys are drawn from twice the capacity
+// of the cache, so that puts keep evicting, and the lifetime is short enough
+// for entries to keep expiring through the shared expiry scheduler.
+// java -jar hermes-benchmarks/target/benchmarks.jar CacheBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final String URL = "http://localhost:58081/test/{id}";
+
+    @Param({ "10000" })
+    private int capacity;
+
+    @Param({ "false", "true" })
+    private boolean offHeap;
+
+    @Param({ "100" })
+    private long lifetime;
+
+    private ResponseEntityCache cache;
+    private String[] ids;
+    private ResponseEntity<DistantWorldDTO> response;
+
+    @Setup
+    public void setup() {
+        cache = new ResponseEntityCache("benchmark", lifetime);
+        cache.setMaxEntries(capacity);
+        cache.setOffHeap(offHeap);
+        ids = new String[2 * capacity];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Integer.toString(i);
+        }
+        response = ResponseEntity.ok(new DistantWorldDTO("test"));
+        for (int i = 0; i < capacity; i++) {
+            cache.putCache(URL, DistantWorldDTO.class, response, ids[i]);
+        }
+    }
+
+    private String randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    @Benchmark
+    public CacheValue get() {
+        return cache.getCacheValue(URL, DistantWorldDTO.class, randomId());
+    }
+
+    @Benchmark
+    public void put() {
+        cache.putCache(URL, DistantWorldDTO.class, response, randomId());
+    }
+
+    // Typical proxy access: get, and put on miss.
+    @Benchmark
+    public Object getOrPut() {
+        String id = randomId();
+        CacheValue value = cache.getCacheValue(URL, DistantWorldDTO.class, id);
+        if (value == null) {
+            cache.putCache(URL, DistantWorldDTO.class, response, id);
+            return response;
+        }
+        return value.getResponse();
+    }
+
+}
@@ -0,0 +1,111 @@
+package onl.gcm.hermes.benchmarks;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+import onl.gcm.hermes.dto.DistantWorldDTO;
+import onl.gcm.hermes.server.ResponseEntityCache;
+import onl.gcm.hermes.server.ResponseEntityCache.CacheKey;
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+
+// Cost of a cache hit lookup, compared with the former key (a mutable key with
+// Lombok @Data equals/hashCode, allocated on each lookup, and a Date timestamp).
+// Run with the allocation profiler:
+// java -jar hermes-benchmarks/target/benchmarks.jar CacheKeyBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheKeyBenchmark {
+
+    // Former CacheKey, as generated by Lombok @Data.
+    private static final class LegacyKey {
+        private final String url;
+        private final Class<?> responseType;
+        private final Object[] uriVariables;
+
+        private LegacyKey(String url, Class<?> responseType, Object... uriVariables) {
+            this.url = url;
+            this.responseType = responseType;
+            this.uriVariables = uriVariables;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LegacyKey)) {
+                return false;
+            }
+            LegacyKey other = (LegacyKey) o;
+            return url.equals(other.url) && responseType.equals(other.responseType)
+                    && Arrays.deepEquals(uriVariables, other.uriVariables);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 59 + url.hashCode();
+            result = result * 59 + responseType.hashCode();
+            return result * 59 + Arrays.deepHashCode(uriVariables);
+        }
+    }
+
+    private static final String URL = "http://localhost:58081/test/{id}";
+
+    @Param({ "10000" })
+    private int size;
+
+    private ResponseEntityCache cache;
+    private ConcurrentHashMap<LegacyKey, Long> legacyCache;
+    private String[] ids;
+    private int next;
+
+    @Setup
+    public void setup() {
+        cache = new ResponseEntityCache("benchmark", ResponseEntityCache.INFINITE_LIFETIME);
+        legacyCache = new ConcurrentHashMap<>();
+        ids = new String[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = Integer.toString(i);
+            cache.putCache(URL, DistantWorldDTO.class, ResponseEntity.ok(new DistantWorldDTO()), ids[i]);
+            legacyCache.put(new LegacyKey(URL, DistantWorldDTO.class, ids[i]), new Date().getTime());
+        }
+    }
+
+    private String nextId() {
+        next = (next + 1) % size;
+        return ids[next];
+    }
+
+    @Benchmark
+    public CacheValue hit() {
+        return cache.getCacheValue(URL, DistantWorldDTO.class, nextId());
+    }
+
+    @Benchmark
+    public long legacyHit() {
+        Long timestamp = legacyCache.get(new LegacyKey(URL, DistantWorldDTO.class, nextId()));
+        return new Date().getTime() - timestamp;
+    }
+
+    @Benchmark
+    public CacheKey newKey() {
+        return new CacheKey(URL, DistantWorldDTO.class, nextId());
+    }
+
+}
@@ -0,0 +1,52 @@
+package onl.gcm.hermes.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import onl.gcm.hermes.server.HermesServerApplication;
+
+// Hermes server running in the benchmark JVM (development profile, H2 in memory)
+// in front of a StubUpstream. Logs go to target/benchmark.log, out of the JMH
+// output.
+public final class HermesServerFixture {
+
+    private static StubUpstream upstream;
+    private static ConfigurableApplicationContext context;
+
+    private HermesServerFixture() {
+    }
+
+    public static synchronized ConfigurableApplicationContext start() throws IOException {
+        if (context == null) {
+            upstream = new StubUpstream();
+            upstream.start();
+            int port = getFreePort();
+            context = new SpringApplicationBuilder(HermesServerApplication.class).run(
+                    "--spring.profiles.active=development",
+                    "--server.port=" + port,
+                    "--hermes.server.url=http://localhost:" + port,
+                    "--distantworld.server.url=" + upstream.getUrl(),
+                    "--logging.file.name=target/benchmark.log",
+                    "--logging.pattern.console=");
+        }
+        return context;
+    }
+
+    public static synchronized void stop() {
+        if (context != null) {
+            context.close();
+            upstream.stop();
+            context = null;
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package onl.gcm.hermes.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import onl.gcm.hermes.client.DistantWorldClient;
+import onl.gcm.hermes.dto.DistantWorldDTO;
+
+// End-to-end proxying: HermesClient -> Hermes server -> stub upstream, all
+// local. cachedGet is served from the cache of DistantWorldController, alive is
+// proxied to the upstream on each call.
+// java -jar hermes-benchmarks/target/benchmarks.jar ProxyBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ProxyBenchmark {
+
+    private static final int IDS = 100;
+
+    private DistantWorldClient client;
+    private String[] ids;
+
+    @Setup
+    public void setup() throws IOException {
+        client = HermesServerFixture.start().getBean(DistantWorldClient.class);
+        ids = new String[IDS];
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = Integer.toString(i);
+            client.getTest(ids[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        HermesServerFixture.stop();
+    }
+
+    @Benchmark
+    public DistantWorldDTO cachedGet() {
+        return client.getTest(ids[ThreadLocalRandom.current().nextInt(IDS)]);
+    }
+
+    @Benchmark
+    public boolean alive() {
+        return client.isAlive();
+    }
+
+}
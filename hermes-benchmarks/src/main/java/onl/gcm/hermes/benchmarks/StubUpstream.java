@@ -0,0 +1,61 @@
+package onl.gcm.hermes.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Local DistantWorld server answering instantly, so that the proxy benchmarks
+// measure Hermes rather than the network or a real upstream.
+public class StubUpstream {
+
+    private static final String TEST_PATH = "/test/";
+    private static final String TEST_BODY_PATTERN = "'{'\"data\":\"test {0}\"'}'";
+    private static final int THREADS = 16;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    public StubUpstream() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith(TEST_PATH)) {
+            byte[] body = MessageFormat.format(TEST_BODY_PATTERN, path.substring(TEST_PATH.length()))
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } else {
+            // 200 for /alive, 204 for /nocontent...
+            exchange.sendResponseHeaders(path.endsWith("/alive") ? 200 : 204, -1);
+        }
+        exchange.close();
+    }
+
+}
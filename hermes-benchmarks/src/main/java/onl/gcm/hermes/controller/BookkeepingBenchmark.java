@@ -0,0 +1,75 @@
+package onl.gcm.hermes.controller;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import onl.gcm.hermes.benchmarks.HermesServerFixture;
+import onl.gcm.hermes.client.HermesClient;
+import onl.gcm.hermes.db.model.LogEntry;
+
+// Per request bookkeeping of HermesController (begin and end: caller lookup,
+// log entry and log lines), outside of any upstream call. In this package to
+// reach the protected methods.
+// java -jar hermes-benchmarks/target/benchmarks.jar BookkeepingBenchmark -prof gc
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookkeepingBenchmark {
+
+    private static final String URL = "http://localhost:58081/test/{id}";
+
+    // Whether the caller sends the current HermesClient version, else no version.
+    @Param({ "true", "false" })
+    private boolean currentVersion;
+
+    private DistantWorldController controller;
+    private ResponseEntity<Void> response;
+
+    @Setup
+    public void setup() throws IOException {
+        controller = HermesServerFixture.start().getBean(DistantWorldController.class);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/distantworld/test/1");
+        request.setRemoteAddr("127.0.0.1");
+        request.setRemoteHost("127.0.0.1");
+        if (currentVersion) {
+            request.addHeader(HermesClient.HERMES_CLIENT_VERSION_HEADER,
+                    HermesServerFixture.start().getBean(HermesClient.class).getVersion());
+        }
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        response = ResponseEntity.ok().build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+        HermesServerFixture.stop();
+    }
+
+    @Benchmark
+    public LogEntry beginEnd() {
+        LogEntry logEntry = controller.begin(URL);
+        controller.end(logEntry, response);
+        return logEntry;
+    }
+
+}
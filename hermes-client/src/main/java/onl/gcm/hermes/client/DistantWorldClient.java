@@ -1,5 +1,9 @@
 package onl.gcm.hermes.client;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Component;
@@ -58,6 +62,16 @@ public class DistantWorldClient extends HermesClient {
                 id);
     }
 
+    // Get the tests of all the ids concurrently, in the order of the ids.
+    public List<DistantWorldDTO> getTest(Collection<String> ids) throws RestClientException {
+        return processAll(ids, this::getTestAsync);
+    }
+
+    public CompletableFuture<DistantWorldDTO> getTestAsync(String id) {
+        return processAsync(getHermesServerUrl() + distantWorldPath + testPath, HttpMethod.GET,
+                DistantWorldDTO.class, null, id);
+    }
+
     public void getNoContent() throws RestClientException {
         process(getHermesServerUrl() + distantWorldPath + noContentPath, HttpMethod.GET, Void.class, null);
     }
@@ -70,4 +84,18 @@ public class DistantWorldClient extends HermesClient {
         process(getHermesServerUrl() + distantWorldPath + crashPath, HttpMethod.GET, Void.class, null);
     }
 
+    public CompletableFuture<Void> getNoContentAsync() {
+        return processAsync(getHermesServerUrl() + distantWorldPath + noContentPath, HttpMethod.GET, Void.class,
+                null);
+    }
+
+    public CompletableFuture<Void> getNotFoundAsync() {
+        return processAsync(getHermesServerUrl() + distantWorldPath + notFoundPath, HttpMethod.GET, Void.class,
+                null);
+    }
+
+    public CompletableFuture<Void> getCrashAsync() {
+        return processAsync(getHermesServerUrl() + distantWorldPath + crashPath, HttpMethod.GET, Void.class, null);
+    }
+
 }
@@ -3,13 +3,33 @@ package onl.gcm.hermes.client;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
+import javax.annotation.PreDestroy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.http.HttpEntity;
@@ -18,7 +38,9 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
@@ -29,6 +51,8 @@ public abstract class HermesClient {
 
     public static final String EXCEPTION_MESSAGE_HEADER = "Exception.message";
     public static final String HERMES_CLIENT_VERSION_HEADER = "HermesClient.version";
+    // Set on cached responses served because the upstream server failed.
+    public static final String STALE_RESPONSE_HEADER = "Hermes.stale";
 
     private static final String HERMES_PROPERTIES = "/hermes.properties";
     private static final String ENVIRONMENT_PROPERTIES = "/hermes-" + System.getProperty("spring.profiles.active")
@@ -38,6 +62,9 @@ public abstract class HermesClient {
     private static final String LF = "\\n";
     private static final String BACKSLASH = "\\";
     private static final String TAB = "\\t";
+    private static final String ASYNC_THREAD_NAME_PREFIX = "hermes-client-";
+    private static final long ASYNC_THREAD_KEEP_ALIVE = 60000;
+    private static final String ASYNC_QUEUE_FULL_MESSAGE = "Too many pending asynchronous requests.";
 
     @Value("${hermes.server.url}")
     protected String hermesServerUrl;
@@ -51,9 +78,49 @@ public abstract class HermesClient {
     @Value("${http.request.read.timeout}")
     protected int httpRequestReadTimeout;
 
+    @Value("${http.request.pool.timeout}")
+    protected int httpRequestPoolTimeout;
+
+    @Value("${http.request.compression}")
+    protected boolean httpRequestCompression;
+
+    @Value("${http.pool.max.total}")
+    protected int httpPoolMaxTotal;
+
+    @Value("${http.pool.max.per.route}")
+    protected int httpPoolMaxPerRoute;
+
+    @Value("${http.pool.keep.alive}")
+    protected long httpPoolKeepAlive;
+
+    @Value("${http.pool.idle.timeout}")
+    protected long httpPoolIdleTimeout;
+
+    @Value("${http.pool.validate.after.inactivity}")
+    protected int httpPoolValidateAfterInactivity;
+
+    @Value("${http.async.threads}")
+    protected int httpAsyncThreads;
+
+    @Value("${http.async.queue.size}")
+    protected int httpAsyncQueueSize;
+
     @Value("${hermes.server.path.alive}")
     protected String hermesServerAlivePath;
 
+    // Long-lived HTTP client holding the pooled connections of every upstream, so
+    // that consecutive requests to the same route reuse warm connections.
+    private CloseableHttpClient httpClient;
+
+    private volatile RestTemplate restTemplate;
+
+    // Threads running the asynchronous requests, bounding their concurrency.
+    private ThreadPoolExecutor asyncExecutor;
+
+    // Read timeout (ms) of each request by URI, overriding the read timeout when
+    // positive.
+    private volatile ToIntFunction<URI> readTimeoutResolver;
+
     public String getVersion() {
         return version;
     }
@@ -83,6 +150,10 @@ public abstract class HermesClient {
                         // Reflection should not be used to increase accessibility of classes, methods,
                         // or fields.
                         field.set(this, Long.parseLong(properties.getProperty(property)));
+                    } else if (field.getType().equals(boolean.class)) {
+                        // Reflection should not be used to increase accessibility of classes, methods,
+                        // or fields.
+                        field.set(this, Boolean.parseBoolean(properties.getProperty(property)));
                     } else {
                         // Reflection should not be used to increase accessibility of classes, methods,
                         // or fields.
@@ -101,6 +172,7 @@ public abstract class HermesClient {
 
     public void setHttpRequestConnectTimeout(int httpRequestConnectTimeout) {
         this.httpRequestConnectTimeout = httpRequestConnectTimeout;
+        restTemplate = null;
     }
 
     public int getHttpRequestReadTimeout() {
@@ -109,6 +181,14 @@ public abstract class HermesClient {
 
     public void setHttpRequestReadTimeout(int httpRequestReadTimeout) {
         this.httpRequestReadTimeout = httpRequestReadTimeout;
+        restTemplate = null;
+    }
+
+    // Set per request read timeouts, such as the adaptive timeouts of the upstream
+    // servers of the Hermes server.
+    public void setReadTimeoutResolver(ToIntFunction<URI> readTimeoutResolver) {
+        this.readTimeoutResolver = readTimeoutResolver;
+        restTemplate = null;
     }
 
     @SuppressWarnings("java:S5361")
@@ -134,10 +214,39 @@ public abstract class HermesClient {
         return messageInHeader == null ? message : messageInHeader;
     }
 
+    // Create a new RestTemplate sharing the pooled connections of this client.
     public RestTemplate createRestTemplate() {
         return new RestTemplate(createClientHttpRequestFactory());
     }
 
+    // Get the RestTemplate shared by all the requests of this client.
+    public RestTemplate getRestTemplate() {
+        RestTemplate template = restTemplate;
+        if (template == null) {
+            synchronized (this) {
+                template = restTemplate;
+                if (template == null) {
+                    template = createRestTemplate();
+                    restTemplate = template;
+                }
+            }
+        }
+        return template;
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        restTemplate = null;
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+    }
+
     public boolean isHermesServerAlive() {
         try {
             process(hermesServerUrl + hermesServerAlivePath, HttpMethod.GET, Void.class, null);
@@ -177,23 +286,139 @@ public abstract class HermesClient {
     }
 
     private ClientHttpRequestFactory createClientHttpRequestFactory() {
-        HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory();
+        HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory(
+                getHttpClient());
         clientHttpRequestFactory.setConnectTimeout(httpRequestConnectTimeout);
         clientHttpRequestFactory.setReadTimeout(httpRequestReadTimeout);
+        clientHttpRequestFactory.setConnectionRequestTimeout(httpRequestPoolTimeout);
+        ToIntFunction<URI> resolver = readTimeoutResolver;
+        if (resolver != null) {
+            clientHttpRequestFactory.setHttpContextFactory((method, uri) -> {
+                int readTimeout = resolver.applyAsInt(uri);
+                if (readTimeout <= 0) {
+                    // Request configuration of the factory.
+                    return null;
+                }
+                HttpClientContext context = HttpClientContext.create();
+                context.setRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(httpRequestConnectTimeout)
+                        .setConnectionRequestTimeout(httpRequestPoolTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .build());
+                return context;
+            });
+        }
         return clientHttpRequestFactory;
     }
 
+    private synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(httpPoolMaxTotal);
+            connectionManager.setDefaultMaxPerRoute(httpPoolMaxPerRoute);
+            connectionManager.setValidateAfterInactivity(httpPoolValidateAfterInactivity);
+            HttpClientBuilder builder = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(createKeepAliveStrategy())
+                    .evictExpiredConnections()
+                    .evictIdleConnections(httpPoolIdleTimeout, TimeUnit.MILLISECONDS);
+            // Accept-Encoding: gzip, deflate is sent and the responses are
+            // decompressed unless disabled.
+            if (!httpRequestCompression) {
+                builder.disableContentCompression();
+            }
+            httpClient = builder.build();
+        }
+        return httpClient;
+    }
+
+    // Honor the Keep-Alive header sent by the upstream, bounded by the configured
+    // keep-alive duration.
+    private ConnectionKeepAliveStrategy createKeepAliveStrategy() {
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, httpPoolKeepAlive) : httpPoolKeepAlive;
+        };
+    }
+
     protected String getHermesServerUrl() {
         return hermesServerUrl;
     }
 
     protected <T> T process(String url, HttpMethod method, Class<T> responseType, Object body, Object... uriVariables)
             throws RestClientException {
-        ResponseEntity<T> response = createRestTemplate().exchange(url, method, createRequestEntity(body),
+        ResponseEntity<T> response = getRestTemplate().exchange(url, method, createRequestEntity(body),
                 responseType, uriVariables);
         return response.getBody();
     }
 
+    // Asynchronous process, run by a bounded pool of threads sharing the pooled
+    // connections. The future fails with the RestClientException process would
+    // have thrown, or with a ResourceAccessException if too many requests are
+    // already pending.
+    protected <T> CompletableFuture<T> processAsync(String url, HttpMethod method, Class<T> responseType,
+            Object body, Object... uriVariables) {
+        try {
+            return CompletableFuture.supplyAsync(() -> process(url, method, responseType, body, uriVariables),
+                    getAsyncExecutor());
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new ResourceAccessException(ASYNC_QUEUE_FULL_MESSAGE));
+            return future;
+        }
+    }
+
+    // Call the asynchronous request for every input and wait for all of them, so
+    // that N requests take about the time of the slowest one (within the limit of
+    // the async threads). Results are in the order of the inputs. The first failure
+    // is thrown at once and cancels the other requests: those still waiting for a
+    // thread are then not sent.
+    protected <I, T> List<T> processAll(Collection<I> inputs, Function<I, CompletableFuture<T>> request)
+            throws RestClientException {
+        List<CompletableFuture<T>> futures = inputs.stream().map(request).collect(Collectors.toList());
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        CompletableFuture<Void> failure = new CompletableFuture<>();
+        for (CompletableFuture<T> future : futures) {
+            future.whenComplete((result, t) -> {
+                if (t != null) {
+                    failure.completeExceptionally(t);
+                }
+            });
+        }
+        try {
+            join(CompletableFuture.anyOf(all, failure));
+        } catch (RuntimeException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        }
+        return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+    }
+
+    // Wait for the future and rethrow its RestClientException, if any, as is.
+    public static <T> T join(CompletableFuture<T> future) throws RestClientException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(ASYNC_THREAD_NAME_PREFIX);
+            threadFactory.setDaemon(true);
+            // Requests beyond the queue are rejected rather than piling up.
+            asyncExecutor = new ThreadPoolExecutor(httpAsyncThreads, httpAsyncThreads, ASYNC_THREAD_KEEP_ALIVE,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(httpAsyncQueueSize), threadFactory,
+                    new ThreadPoolExecutor.AbortPolicy());
+            asyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return asyncExecutor;
+    }
+
     private HttpEntity<?> createRequestEntity(Object body) {
         HttpHeaders headers = new HttpHeaders();
         headers.set(HERMES_CLIENT_VERSION_HEADER, getVersion());
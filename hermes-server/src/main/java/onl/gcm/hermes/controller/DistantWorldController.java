@@ -9,9 +9,11 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import onl.gcm.hermes.client.DistantWorldClient;
 import onl.gcm.hermes.dto.DistantWorldDTO;
+import onl.gcm.hermes.server.CachePolicy;
 
 @RestController
 @PropertySource("classpath:servers.properties")
@@ -26,41 +28,96 @@ public class DistantWorldController extends HermesController {
     @Value("${distantworld.server.cache.lifetime}")
     private long cacheLifetime;
 
-    @Value("${distantworld.server.cache.prune.delay}")
-    private long cachePruneDelay;
+    @Value("${distantworld.server.cache.max.entries}")
+    private long cacheMaxEntries;
+
+    @Value("${distantworld.server.cache.max.bytes}")
+    private long cacheMaxBytes;
+
+    @Value("${distantworld.server.cache.off.heap}")
+    private boolean cacheOffHeap;
+
+    @Value("${distantworld.server.cache.stale.lifetime}")
+    private long cacheStaleLifetime;
+
+    @Value("${distantworld.server.cache.stale.if.error.lifetime}")
+    private long cacheStaleIfErrorLifetime;
+
+    @Value("${distantworld.server.cache.revalidation.lifetime}")
+    private long cacheRevalidationLifetime;
+
+    @Value("${distantworld.server.cache.refresh.ahead}")
+    private long cacheRefreshAhead;
+
+    @Value("${distantworld.server.cache.negative.lifetime}")
+    private long negativeCacheLifetime;
+
+    @Value("${distantworld.server.cache.negative.max.entries}")
+    private long negativeCacheMaxEntries;
+
+    @Value("${distantworld.server.cache.negative.statuses}")
+    private int[] negativeCacheStatuses;
 
     @Autowired
     private DistantWorldClient distantWorldClient;
 
+    // Upstream URLs, built once so that each request does not build a new string
+    // for its cache key.
+    private String aliveUrl;
+    private String testUrl;
+    private String noContentUrl;
+    private String notFoundUrl;
+    private String crashUrl;
+
     @GetMapping("${distantworld.path}${distantworld.path.alive}")
-    protected ResponseEntity<Void> isAlive() {
-        return processGet(false, distantWorldServerUrl + distantWorldClient.getAlivePath(), Void.class);
+    protected ResponseEntity<StreamingResponseBody> isAlive() {
+        return streamGet(aliveUrl);
     }
 
+    // Own caches, so that their size and lifetimes do not depend on the other
+    // routes.
     @GetMapping("${distantworld.path}${distantworld.path.test}")
-    protected ResponseEntity<DistantWorldDTO> test(@PathVariable String id) {
-        return processGet(true, distantWorldServerUrl + distantWorldClient.getTestPath(), DistantWorldDTO.class, id);
+    @CachePolicy(lifetime = "${distantworld.server.cache.test.lifetime}",
+            maxEntries = "${distantworld.server.cache.test.max.entries}",
+            negativeLifetime = "${distantworld.server.cache.test.negative.lifetime}")
+    protected Object test(@PathVariable String id) {
+        return proxyGet(true, testUrl, DistantWorldDTO.class, id);
     }
 
     @GetMapping("${distantworld.path}${distantworld.path.nocontent}")
-    protected ResponseEntity<Void> noContent() {
-        return processGet(true, distantWorldServerUrl + distantWorldClient.getNoContentPath(), Void.class);
+    protected Object noContent() {
+        return proxyGet(true, noContentUrl, Void.class);
     }
 
     @GetMapping("${distantworld.path}${distantworld.path.notfound}")
-    protected ResponseEntity<Void> notFound() {
-        return processGet(false, distantWorldServerUrl + distantWorldClient.getNotFoundPath(), Void.class);
+    protected Object notFound() {
+        return proxyGet(true, notFoundUrl, Void.class);
     }
 
     @GetMapping("${distantworld.path}${distantworld.path.crash}")
-    protected ResponseEntity<Void> crash() {
-        return processGet(false, distantWorldServerUrl + distantWorldClient.getCrashPath(), Void.class);
+    protected ResponseEntity<StreamingResponseBody> crash() {
+        return streamGet(crashUrl);
     }
 
     @PostConstruct
     private void initialize() {
+        aliveUrl = distantWorldServerUrl + distantWorldClient.getAlivePath();
+        testUrl = distantWorldServerUrl + distantWorldClient.getTestPath();
+        noContentUrl = distantWorldServerUrl + distantWorldClient.getNoContentPath();
+        notFoundUrl = distantWorldServerUrl + distantWorldClient.getNotFoundPath();
+        crashUrl = distantWorldServerUrl + distantWorldClient.getCrashPath();
         setCacheLifetime(cacheLifetime);
-        setCachePruneDelay(cachePruneDelay);
+        setCacheMaxEntries(cacheMaxEntries);
+        setCacheMaxBytes(cacheMaxBytes);
+        setCacheOffHeap(cacheOffHeap);
+        setCacheStaleLifetime(cacheStaleLifetime);
+        setCacheStaleIfErrorLifetime(cacheStaleIfErrorLifetime);
+        setCacheRevalidationLifetime(cacheRevalidationLifetime);
+        setCacheRefreshAhead(cacheRefreshAhead);
+        setNegativeCacheLifetime(negativeCacheLifetime);
+        setNegativeCacheMaxEntries(negativeCacheMaxEntries);
+        setNegativeCacheStatuses(negativeCacheStatuses);
+        registerUpstream(distantWorldServerUrl, aliveUrl);
     }
 
 }
@@ -1,13 +1,26 @@
 package onl.gcm.hermes.controller;
 
-import java.net.InetAddress;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
-import java.net.UnknownHostException;
-import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 import java.util.stream.StreamSupport;
 
 import javax.annotation.PostConstruct;
@@ -15,34 +28,130 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.annotation.AnnotatedElementUtils;
 import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.Environment;
 import org.springframework.core.env.MutablePropertySources;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientResponseException;
-import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
-import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import onl.gcm.hermes.client.HermesClient;
 import onl.gcm.hermes.client.SpringUtils;
 import onl.gcm.hermes.db.model.LogEntry;
-import onl.gcm.hermes.db.service.LogEntryService;
+import onl.gcm.hermes.db.service.LogEntryWriter;
+import onl.gcm.hermes.server.CacheInvalidation;
+import onl.gcm.hermes.server.CachePolicy;
+import onl.gcm.hermes.server.CompressedBodyAdvice;
+import onl.gcm.hermes.server.CacheRefresher;
+import onl.gcm.hermes.server.HostNameResolver;
+import onl.gcm.hermes.server.LogRateLimiter;
+import onl.gcm.hermes.server.ReactiveUpstreamClient;
+import onl.gcm.hermes.server.RequestCoalescer;
 import onl.gcm.hermes.server.ResponseEntityCache;
+import onl.gcm.hermes.server.ResponseEntityCache.CacheKey;
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+import onl.gcm.hermes.server.ResponseEntityCache.Freshness;
+import onl.gcm.hermes.server.ResponseEntityCacheRegistry;
+import onl.gcm.hermes.server.ResponseEntityCodec;
+import onl.gcm.hermes.server.UpstreamGuard;
+import onl.gcm.hermes.server.UpstreamUnavailableException;
 
 @PropertySource("classpath:servers.properties")
 @PropertySource("classpath:servers-${spring.profiles.active}.properties")
-public class HermesController {
+public class HermesController implements SmartInitializingSingleton {
+
+    public enum ProxyMode {
+        // Upstream calls are made with RestTemplate on the servlet thread.
+        BLOCKING,
+        // Upstream calls are made with WebClient, the servlet thread is released until
+        // the response is available.
+        REACTIVE
+    }
+
+    // Caches of a route and how its responses are cached, see CachePolicy.
+    private static final class CacheRoute {
+        private final ResponseEntityCache cache;
+        // Error responses, kept apart so that they cannot evict the successful ones.
+        private final ResponseEntityCache negativeCache;
+        // Error statuses cached by the route, besides those of the controller.
+        private final Set<Integer> statuses;
+        private final String[] varyBy;
+
+        private CacheRoute(ResponseEntityCache cache, ResponseEntityCache negativeCache, Set<Integer> statuses,
+                String[] varyBy) {
+            this.cache = cache;
+            this.negativeCache = negativeCache;
+            this.statuses = statuses;
+            this.varyBy = varyBy;
+        }
+    }
+
+    // GET request of a cacheable route: its upstream call and the cache key of its
+    // response.
+    private static final class CacheableGet<T> {
+        private final CacheRoute route;
+        private final String url;
+        private final Class<T> responseType;
+        private final Object[] uriVariables;
+        // URI variables followed by the values of the vary-by headers.
+        private final Object[] keyVariables;
+        // Vary-by headers forwarded to the upstream server, or null.
+        private final HttpHeaders headers;
+
+        private CacheableGet(CacheRoute route, String url, Class<T> responseType, Object[] uriVariables,
+                Object[] keyVariables, HttpHeaders headers) {
+            this.route = route;
+            this.url = url;
+            this.responseType = responseType;
+            this.uriVariables = uriVariables;
+            this.keyVariables = keyVariables;
+            this.headers = headers;
+        }
+
+        private ResponseEntityCache getCache() {
+            return route.cache;
+        }
+
+        private CacheValue getCacheValue() {
+            return route.cache.getCacheValue(url, responseType, keyVariables);
+        }
+
+        private ResponseEntity<T> getNegativeResponse() {
+            return route.negativeCache.getCache(url, responseType, keyVariables);
+        }
+
+        private CacheKey newCacheKey() {
+            return new CacheKey(url, responseType, keyVariables);
+        }
+    }
 
-    private static final String FROM_TO_PATTERN = "[Caller: {0}] {1} -> {2}";
-    private static final String UNKNOWN_CLIENT_PATTERN = "{0} did not send any HermesClient version.";
-    private static final String VERSION_MISMATCH_PATTERN = "{0} is using HermesClient {1} instead of {2}!";
-    private static final String CACHED_FROM_TO_PATTERN = "{0} -> {1} ({2}{3} ms)";
+    private static final String FROM_TO_PATTERN = "[Caller: {}] {} -> {}";
+    private static final String UNKNOWN_CLIENT_PATTERN = "{} did not send any HermesClient version.";
+    private static final String VERSION_MISMATCH_PATTERN = "{} is using HermesClient {} instead of {}!";
+    private static final String CACHED_FROM_TO_PATTERN = "{} -> {} ({}{} ms)";
     private static final String CACHED = "cached, ";
     private static final String NOT_CACHED = "";
     private static final String CLIENT_URL_SUFFIX = ".client.url";
@@ -50,14 +159,67 @@ public class HermesController {
     private static final String NAME_SUFFIX = ".name";
     private static final String LOCALHOST_ADDRESS = "127.0.0.1";
     private static final String LOCALHOST_HOST = "localhost";
+    private static final String ROUTE_CACHE_SEPARATOR = ".";
+    private static final String NEGATIVE_CACHE_SUFFIX = ".negative";
+    private static final String COLLAPSED_METER = "hermes.requests.collapsed";
+    private static final String IN_FLIGHT_METER = "hermes.requests.inflight";
+    private static final String CONTROLLER_TAG = "controller";
+    // Headers of the upstream response passed on by streamGet, the other ones
+    // describing the upstream connection rather than the body.
+    private static final String[] STREAMED_HEADERS = { HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH,
+            HttpHeaders.CONTENT_ENCODING, HttpHeaders.CONTENT_LANGUAGE, HttpHeaders.CONTENT_DISPOSITION,
+            HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.CACHE_CONTROL, HttpHeaders.EXPIRES };
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    // Share of the requests whose proxy log lines are logged, from 0 to 1.
+    @Value("${hermes.server.log.sample.rate}")
+    private double logSampleRate;
+
+    @Value("${hermes.server.log.version.warning.interval}")
+    private long versionWarningInterval;
+
+    @Value("${hermes.server.proxy.mode}")
+    private ProxyMode proxyMode;
+
+    @Value("${hermes.server.stream.buffer.size}")
+    private int streamBufferSize;
+
     @Value("${default.server.cache.lifetime}")
     private long defaultCacheLifetime;
 
-    @Value("${default.server.cache.prune.delay}")
-    private long defaultCachePruneDelay;
+    @Value("${default.server.cache.max.entries}")
+    private long defaultCacheMaxEntries;
+
+    @Value("${default.server.cache.max.bytes}")
+    private long defaultCacheMaxBytes;
+
+    @Value("${default.server.cache.off.heap}")
+    private boolean defaultCacheOffHeap;
+
+    @Value("${default.server.cache.stale.lifetime}")
+    private long defaultCacheStaleLifetime;
+
+    @Value("${default.server.cache.stale.if.error.lifetime}")
+    private long defaultCacheStaleIfErrorLifetime;
+
+    @Value("${default.server.cache.revalidation.lifetime}")
+    private long defaultCacheRevalidationLifetime;
+
+    @Value("${default.server.cache.refresh.ahead}")
+    private long defaultCacheRefreshAhead;
+
+    @Value("${default.server.cache.refresh.ahead.hits}")
+    private int defaultCacheRefreshAheadHits;
+
+    @Value("${default.server.cache.negative.lifetime}")
+    private long defaultNegativeCacheLifetime;
+
+    @Value("${default.server.cache.negative.max.entries}")
+    private long defaultNegativeCacheMaxEntries;
+
+    @Value("${default.server.cache.negative.statuses}")
+    private int[] defaultNegativeCacheStatuses;
 
     @Autowired
     private HttpServletRequest httpServletRequest;
@@ -66,30 +228,248 @@ public class HermesController {
     private HermesClient hermesClient;
 
     @Autowired
-    private LogEntryService logEntryService;
+    private LogEntryWriter logEntryWriter;
+
+    @Autowired
+    private CacheRefresher cacheRefresher;
+
+    @Autowired
+    private HostNameResolver hostNameResolver;
+
+    @Autowired
+    private ReactiveUpstreamClient reactiveUpstreamClient;
+
+    @Autowired
+    private UpstreamGuard upstreamGuard;
+
+    @Autowired
+    private ResponseEntityCacheRegistry cacheRegistry;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private CompressedBodyAdvice compressedBodyAdvice;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     private static HashMap<String, String> applications;
 
+    // Cache of the controller, shared by its routes without cache policy.
     private ResponseEntityCache cache;
 
+    // Error responses of the controller routes sharing its cache.
+    private ResponseEntityCache negativeCache;
+
+    // Error statuses cached by every route of the controller.
+    private final Set<Integer> negativeCacheStatuses = new CopyOnWriteArraySet<>();
+
+    // Caches of the controller and of its routes.
+    private final List<ResponseEntityCache> caches = new CopyOnWriteArrayList<>();
+
+    // Cache route of each handler method with a cache policy, resolved at startup.
+    private final ConcurrentHashMap<Method, CacheRoute> routes = new ConcurrentHashMap<>();
+
+    private CacheRoute defaultRoute;
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    // Version warnings are logged once per interval for each caller and version.
+    private LogRateLimiter versionWarningLimiter;
+
     protected void setCacheLifetime(long lifetime) {
         cache.setLifetime(lifetime);
     }
 
-    protected void setCachePruneDelay(long pruneDelay) {
-        cache.setPruneDelay(pruneDelay);
+    protected void setCacheMaxEntries(long maxEntries) {
+        cache.setMaxEntries(maxEntries);
+    }
+
+    protected void setCacheMaxBytes(long maxBytes) {
+        cache.setMaxWeight(maxBytes);
+    }
+
+    protected void setCacheOffHeap(boolean offHeap) {
+        cache.setOffHeap(offHeap);
+    }
+
+    protected void setCacheStaleLifetime(long staleLifetime) {
+        cache.setStaleLifetime(staleLifetime);
+    }
+
+    protected void setCacheStaleIfErrorLifetime(long staleIfErrorLifetime) {
+        cache.setStaleIfErrorLifetime(staleIfErrorLifetime);
+    }
+
+    protected void setCacheRevalidationLifetime(long revalidationLifetime) {
+        cache.setRevalidationLifetime(revalidationLifetime);
+    }
+
+    protected void setCacheRefreshAhead(long refreshAhead) {
+        cache.setRefreshAhead(refreshAhead);
+    }
+
+    // Error responses are cached for their own (short) lifetime, up to their own
+    // maximum number of entries.
+    protected void setNegativeCacheLifetime(long lifetime) {
+        negativeCache.setLifetime(lifetime);
+    }
+
+    protected void setNegativeCacheMaxEntries(long maxEntries) {
+        negativeCache.setMaxEntries(maxEntries);
+    }
+
+    // Error statuses whose responses are cached, none to disable negative caching.
+    protected void setNegativeCacheStatuses(int... statuses) {
+        negativeCacheStatuses.clear();
+        for (int status : statuses) {
+            negativeCacheStatuses.add(status);
+        }
+    }
+
+    // Register an upstream server, whose circuit breaker calls aliveUrl to know
+    // whether it is back.
+    protected void registerUpstream(String serverUrl, String aliveUrl) {
+        upstreamGuard.register(serverUrl, aliveUrl);
     }
 
+    // The invalidations apply to the caches of the controller and of its routes, and
+    // are also sent to the other nodes.
     protected void clearCache() {
-        cache.clearCache();
+        for (ResponseEntityCache c : caches) {
+            cacheRegistry.invalidate(CacheInvalidation.clear(c.getName()));
+        }
+    }
+
+    protected <T> void removeCache(String url, Class<T> responseType, Object... uriVariables) {
+        for (ResponseEntityCache c : caches) {
+            cacheRegistry.invalidate(ResponseEntityCodec.isEncodable(uriVariables)
+                    ? CacheInvalidation.key(c.getName(), url, responseType, uriVariables)
+                    : CacheInvalidation.responseType(c.getName(), responseType));
+        }
+    }
+
+    // The other nodes remove every entry of the response type.
+    protected <T> void removeCache(Class<T> responseType, Predicate<ResponseEntity<T>> predicate) {
+        for (ResponseEntityCache c : caches) {
+            c.removeCache(responseType, predicate);
+            cacheRegistry.publish(CacheInvalidation.responseType(c.getName(), responseType));
+        }
+    }
+
+    protected void removeCacheByUrl(String url) {
+        for (ResponseEntityCache c : caches) {
+            cacheRegistry.invalidate(CacheInvalidation.url(c.getName(), url));
+        }
+    }
+
+    protected void removeCacheByUrlPrefix(String prefix) {
+        for (ResponseEntityCache c : caches) {
+            cacheRegistry.invalidate(CacheInvalidation.urlPrefix(c.getName(), prefix));
+        }
+    }
+
+    protected void removeCacheByTag(String tag) {
+        for (ResponseEntityCache c : caches) {
+            cacheRegistry.invalidate(CacheInvalidation.tag(c.getName(), tag));
+        }
+    }
+
+    // Tag the entries cached for the URL (template), see removeCacheByTag.
+    protected void setCacheTags(String url, String... tags) {
+        for (ResponseEntityCache c : caches) {
+            c.setTags(url, tags);
+        }
+    }
+
+    // Cache route of the handler method of the current request.
+    private CacheRoute getRoute() {
+        Object handler = httpServletRequest.getAttribute(HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE);
+        return handler instanceof HandlerMethod
+                ? routes.getOrDefault(((HandlerMethod) handler).getMethod(), defaultRoute)
+                : defaultRoute;
+    }
+
+    // Resolve the route of each handler method with a cache policy once every
+    // controller is initialized, subclasses included, so that the route caches
+    // inherit the final settings of the controller cache. Their caches then exist
+    // before the registry loads the snapshots, and receive the invalidations and
+    // admin operations from the start.
+    @Override
+    public void afterSingletonsInstantiated() {
+        for (Method method : ReflectionUtils.getUniqueDeclaredMethods(ClassUtils.getUserClass(getClass()))) {
+            CachePolicy policy = AnnotatedElementUtils.findMergedAnnotation(method, CachePolicy.class);
+            if (policy != null) {
+                routes.put(method, createRoute(method, policy));
+            }
+        }
+    }
+
+    private CacheRoute createRoute(Method method, CachePolicy policy) {
+        String lifetime = environment.resolveRequiredPlaceholders(policy.lifetime());
+        String maxEntries = environment.resolveRequiredPlaceholders(policy.maxEntries());
+        String maxBytes = environment.resolveRequiredPlaceholders(policy.maxBytes());
+        String negativeLifetime = environment.resolveRequiredPlaceholders(policy.negativeLifetime());
+        ResponseEntityCache routeCache = cache;
+        ResponseEntityCache routeNegativeCache = negativeCache;
+        if (!policy.cache().isEmpty() || !lifetime.isEmpty() || !maxEntries.isEmpty() || !maxBytes.isEmpty()
+                || !negativeLifetime.isEmpty()) {
+            String name = policy.cache().isEmpty() ? cache.getName() + ROUTE_CACHE_SEPARATOR + method.getName()
+                    : policy.cache();
+            routeCache = cacheRegistry.getCache(name, c -> {
+                c.copySettings(cache);
+                if (!lifetime.isEmpty()) {
+                    c.setLifetime(Long.parseLong(lifetime));
+                }
+                if (!maxEntries.isEmpty()) {
+                    c.setMaxEntries(Long.parseLong(maxEntries));
+                }
+                if (!maxBytes.isEmpty()) {
+                    c.setMaxWeight(Long.parseLong(maxBytes));
+                }
+            });
+            routeNegativeCache = cacheRegistry.getCache(name + NEGATIVE_CACHE_SUFFIX, c -> {
+                c.copySettings(negativeCache);
+                if (!negativeLifetime.isEmpty()) {
+                    c.setLifetime(Long.parseLong(negativeLifetime));
+                }
+            });
+            if (!caches.contains(routeCache)) {
+                caches.add(routeCache);
+                caches.add(routeNegativeCache);
+            }
+        }
+        Set<Integer> statuses = new HashSet<>();
+        for (int status : policy.statuses()) {
+            statuses.add(status);
+        }
+        return new CacheRoute(routeCache, routeNegativeCache, statuses, policy.varyBy());
+    }
+
+    private <T> CacheableGet<T> newCacheableGet(String url, Class<T> responseType, Object... uriVariables) {
+        CacheRoute route = getRoute();
+        if (route.varyBy.length == 0) {
+            return new CacheableGet<>(route, url, responseType, uriVariables, uriVariables, null);
+        }
+
+        Object[] keyVariables = Arrays.copyOf(uriVariables, uriVariables.length + route.varyBy.length);
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < route.varyBy.length; i++) {
+            String value = httpServletRequest.getHeader(route.varyBy[i]);
+            keyVariables[uriVariables.length + i] = value == null ? "" : value;
+            if (value != null) {
+                headers.set(route.varyBy[i], value);
+            }
+        }
+        return new CacheableGet<>(route, url, responseType, uriVariables, keyVariables, headers);
     }
 
     protected LogEntry begin(String url) {
         LogEntry logEntry = new LogEntry();
         String remoteHost = httpServletRequest.getRemoteHost();
-        String remoteApplication = getRemoteApplication(resolveHost(remoteHost));
-        UriComponentsBuilder builder = ServletUriComponentsBuilder.fromCurrentRequest();
-        String path = builder.buildAndExpand().getPath();
+        String remoteApplication = getRemoteApplication(hostNameResolver.resolve(remoteHost));
+        String path = httpServletRequest.getRequestURI();
         String requestClientVersion = httpServletRequest.getHeader(HermesClient.HERMES_CLIENT_VERSION_HEADER);
         String currentClientVersion = hermesClient.getVersion();
         logEntry.setRemoteHost(remoteHost);
@@ -98,45 +478,370 @@ public class HermesController {
         logEntry.setApplicationUrl(url);
         logEntry.setRequestClientVersion(requestClientVersion);
         logEntry.setClientVersion(currentClientVersion);
+        // The proxy log lines of a request are either all logged or all skipped.
+        logEntry.setSampled(logger.isInfoEnabled()
+                && ((logSampleRate >= 1) || (ThreadLocalRandom.current().nextDouble() < logSampleRate)));
 
         String host = remoteApplication == null ? remoteHost : remoteApplication;
-        String msg = MessageFormat.format(FROM_TO_PATTERN, host, path, url);
-        logger.info(msg);
-        if (!currentClientVersion.equals(requestClientVersion)) {
+        if (logEntry.isSampled()) {
+            logger.info(FROM_TO_PATTERN, host, path, url);
+        }
+        if (!currentClientVersion.equals(requestClientVersion) && logger.isWarnEnabled()
+                && versionWarningLimiter.tryAcquire(Arrays.asList(host, requestClientVersion))) {
             if (requestClientVersion == null) {
-                msg = MessageFormat.format(UNKNOWN_CLIENT_PATTERN, host);
-                logger.warn(msg);
+                logger.warn(UNKNOWN_CLIENT_PATTERN, host);
             } else {
-                msg = MessageFormat.format(VERSION_MISMATCH_PATTERN, host, requestClientVersion, currentClientVersion);
-                logger.warn(msg);
+                logger.warn(VERSION_MISMATCH_PATTERN, host, requestClientVersion, currentClientVersion);
             }
         }
 
         return logEntry;
     }
 
+    @SuppressWarnings("unchecked")
     protected <T> ResponseEntity<T> processGet(boolean cacheable, String url, Class<T> responseType,
             Object... uriVariables) throws RestClientException {
         LogEntry logEntry = begin(url);
 
-        ResponseEntity<T> response = cacheable ? cache.getCache(url, responseType, uriVariables) : null;
+        CacheableGet<T> get = cacheable ? newCacheableGet(url, responseType, uriVariables) : null;
+        CacheValue value = cacheable ? get.getCacheValue() : null;
+        Freshness freshness = value == null ? null : get.getCache().getFreshness(value);
+        CacheValue staleValue = (value != null) && get.getCache().isServableOnError(value) ? value : null;
+        // Type safety: The expression of type ResponseEntity needs unchecked conversion
+        // to conform to ResponseEntity<T>.
+        ResponseEntity<T> response = (value == null) || (freshness == Freshness.EXPIRED) ? null
+                : value.getResponse();
+        if (response != null) {
+            compressedBodyAdvice.prepare(httpServletRequest, get.getCache(), value, response);
+        } else if (cacheable) {
+            response = get.getNegativeResponse();
+        }
+        if ((freshness == Freshness.STALE) || (freshness == Freshness.REFRESH_AHEAD)) {
+            // Serve the stale or about to expire response and refresh it in the
+            // background.
+            cacheRefresher.refresh(value.getKey(), () -> getForEntityCoalesced(get, value));
+        }
         if (response == null) {
             try {
-                response = hermesClient.createRestTemplate().getForEntity(url, responseType, uriVariables);
-                if (cacheable) {
-                    cache.putCache(url, responseType, response, uriVariables);
-                }
+                response = cacheable ? getForEntityCoalesced(get, value)
+                        : getForEntity(url, responseType, uriVariables);
                 end(logEntry, response);
             } catch (RestClientException e) {
-                response = fail(e);
-                end(logEntry, e);
+                response = failOrServeStale(logEntry, e, staleValue);
             }
         } else {
             logEntry.setCached(true);
             end(logEntry, response);
         }
 
-        logEntryService.create(logEntry);
+        logEntryWriter.write(logEntry);
+        return response;
+    }
+
+    // Upstream GET calls are guarded by the circuit breaker and the bulkhead of their
+    // upstream server, and hedged if enabled since they are idempotent.
+    private <T> ResponseEntity<T> getForEntity(String url, Class<T> responseType, Object... uriVariables)
+            throws RestClientException {
+        return upstreamGuard.executeHedged(url,
+                () -> hermesClient.getRestTemplate().getForEntity(url, responseType, uriVariables));
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> getForEntityAsync(String url, Class<T> responseType,
+            Object... uriVariables) {
+        return upstreamGuard.executeHedgedAsync(url,
+                () -> reactiveUpstreamClient.getForEntity(url, responseType, uriVariables));
+    }
+
+    // GET forwarding the vary-by headers, and conditional if the cached value has
+    // validators, in which case it may be answered with 304 Not Modified and no
+    // body.
+    private <T> ResponseEntity<T> getForEntityIfModified(CacheableGet<T> get, CacheValue cachedValue)
+            throws RestClientException {
+        HttpHeaders headers = getRequestHeaders(get, cachedValue);
+        if (headers == null) {
+            return getForEntity(get.url, get.responseType, get.uriVariables);
+        }
+        return upstreamGuard.executeHedged(get.url, () -> hermesClient.getRestTemplate().exchange(get.url,
+                HttpMethod.GET, new HttpEntity<>(headers), get.responseType, get.uriVariables));
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> getForEntityIfModifiedAsync(CacheableGet<T> get,
+            CacheValue cachedValue) {
+        HttpHeaders headers = getRequestHeaders(get, cachedValue);
+        if (headers == null) {
+            return getForEntityAsync(get.url, get.responseType, get.uriVariables);
+        }
+        return upstreamGuard.executeHedgedAsync(get.url,
+                () -> reactiveUpstreamClient.getForEntity(get.url, headers, get.responseType, get.uriVariables));
+    }
+
+    // Vary-by headers, plus If-None-Match and If-Modified-Since headers built from
+    // the validators of the cached value, or null if there are none.
+    private static HttpHeaders getRequestHeaders(CacheableGet<?> get, CacheValue cachedValue) {
+        boolean conditional = (cachedValue != null) && cachedValue.hasValidators();
+        if ((get.headers == null) && !conditional) {
+            return null;
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        if (get.headers != null) {
+            headers.putAll(get.headers);
+        }
+        if (conditional && (cachedValue.getEtag() != null)) {
+            headers.setIfNoneMatch(cachedValue.getEtag());
+        }
+        if (conditional && (cachedValue.getLastModified() != null)) {
+            headers.set(HttpHeaders.IF_MODIFIED_SINCE, cachedValue.getLastModified());
+        }
+        return headers;
+    }
+
+    // Concurrent cache misses for the same key share a single upstream call, whose
+    // response is cached before being handed to every caller. The expired cached
+    // value, if any, is revalidated instead of being downloaded again.
+    private <T> ResponseEntity<T> getForEntityCoalesced(CacheableGet<T> get, CacheValue cachedValue)
+            throws RestClientException {
+        return coalescer.execute(get.newCacheKey(), () -> {
+            ResponseEntity<T> response = null;
+            RestClientException error = null;
+            try {
+                response = getForEntityIfModified(get, cachedValue);
+            } catch (RestClientException e) {
+                error = e;
+            }
+            return cacheResponse(get, cachedValue, response, error);
+        });
+    }
+
+    // Cache the upstream response, or on 304 Not Modified make the cached value
+    // fresh again and return its response. Error responses whose status is cached
+    // go to the negative cache, with their exception message header, unless a stale
+    // value can be served instead. Other errors are rethrown.
+    @SuppressWarnings("unchecked")
+    private <T> ResponseEntity<T> cacheResponse(CacheableGet<T> get, CacheValue cachedValue,
+            ResponseEntity<T> response, Throwable t) {
+        if (t != null) {
+            RestClientException e = ReactiveUpstreamClient.toRestClientException(
+                    (t instanceof CompletionException) && (t.getCause() != null) ? t.getCause() : t);
+            if (!isNegativelyCached(get.route, e) || ((cachedValue != null) && UpstreamGuard.isFailure(e)
+                    && get.getCache().isServableOnError(cachedValue))) {
+                throw e;
+            }
+            response = fail(e);
+            get.route.negativeCache.putCache(get.url, get.responseType, response, get.keyVariables);
+            // The error replaces the former response.
+            if (cachedValue != null) {
+                get.getCache().removeCache(get.url, get.responseType, get.keyVariables);
+            }
+            return response;
+        }
+        if ((cachedValue != null) && (response.getStatusCode() == HttpStatus.NOT_MODIFIED)) {
+            get.getCache().revalidate(cachedValue);
+            // Type safety: The expression of type ResponseEntity needs unchecked conversion
+            // to conform to ResponseEntity<T>.
+            return cachedValue.getResponse();
+        }
+        get.getCache().putCache(get.url, get.responseType, response, get.keyVariables);
+        if (get.route.negativeCache.getSize() > 0) {
+            get.route.negativeCache.removeCache(get.url, get.responseType, get.keyVariables);
+        }
+        return response;
+    }
+
+    private boolean isNegativelyCached(CacheRoute route, RestClientException e) {
+        if (!(e instanceof RestClientResponseException)) {
+            return false;
+        }
+        int status = ((RestClientResponseException) e).getRawStatusCode();
+        return negativeCacheStatuses.contains(status) || route.statuses.contains(status);
+    }
+
+    // Proxy a GET request with the configured proxy mode. The handler methods
+    // return the result as Object, which Spring MVC handles according to its
+    // actual type: the ResponseEntity itself in blocking mode, so that the request
+    // is not dispatched asynchronously, or a CompletableFuture of it in reactive
+    // mode.
+    protected <T> Object proxyGet(boolean cacheable, String url, Class<T> responseType, Object... uriVariables) {
+        return proxyMode == ProxyMode.REACTIVE ? processGetAsync(cacheable, url, responseType, uriVariables)
+                : processGet(cacheable, url, responseType, uriVariables);
+    }
+
+    // Proxy a POST request with the configured proxy mode, see proxyGet.
+    protected <T> Object proxyPost(String url, Object request, Class<T> responseType, Object... uriVariables) {
+        return proxyMode == ProxyMode.REACTIVE ? processPostAsync(url, request, responseType, uriVariables)
+                : processPost(url, request, responseType, uriVariables);
+    }
+
+    // Proxy a DELETE request with the configured proxy mode, see proxyGet.
+    protected Object proxyDelete(String url, Object... uriVariables) {
+        return proxyMode == ProxyMode.REACTIVE ? processDeleteAsync(url, uriVariables)
+                : processDelete(url, uriVariables);
+    }
+
+    // Proxy a GET request without deserializing its body: once the method has
+    // returned, the upstream bytes are copied to the caller through a fixed-size
+    // buffer, so that the memory used does not depend on the size of the body. For
+    // the routes that are not cached. The request is logged once the upstream
+    // headers are received.
+    protected ResponseEntity<StreamingResponseBody> streamGet(String url, Object... uriVariables) {
+        LogEntry logEntry = begin(url);
+
+        ResponseEntity<StreamingResponseBody> response;
+        try {
+            ClientHttpResponse upstreamResponse = upstreamGuard.execute(url, () -> openStream(url, uriVariables));
+            HttpHeaders headers = new HttpHeaders();
+            for (String name : STREAMED_HEADERS) {
+                List<String> values = upstreamResponse.getHeaders().get(name);
+                if (values != null) {
+                    headers.put(name, values);
+                }
+            }
+            response = ResponseEntity.status(getRawStatusCode(upstreamResponse)).headers(headers)
+                    .body(out -> copy(upstreamResponse, out));
+            end(logEntry, response);
+        } catch (RestClientException e) {
+            end(logEntry, e);
+            response = fail(e);
+        }
+
+        logEntryWriter.write(logEntry);
+        return response;
+    }
+
+    // Send the GET request and return the upstream response, whose body is still
+    // to be read. Error responses are turned into the exceptions of the
+    // RestTemplate.
+    private ClientHttpResponse openStream(String url, Object... uriVariables) throws RestClientException {
+        RestTemplate restTemplate = hermesClient.getRestTemplate();
+        URI uri = restTemplate.getUriTemplateHandler().expand(url, uriVariables);
+        try {
+            ClientHttpResponse response = restTemplate.getRequestFactory().createRequest(uri, HttpMethod.GET)
+                    .execute();
+            if (restTemplate.getErrorHandler().hasError(response)) {
+                try {
+                    restTemplate.getErrorHandler().handleError(uri, HttpMethod.GET, response);
+                } finally {
+                    response.close();
+                }
+            }
+            return response;
+        } catch (IOException e) {
+            throw new ResourceAccessException(e.getMessage(), e);
+        }
+    }
+
+    private static int getRawStatusCode(ClientHttpResponse response) throws RestClientException {
+        try {
+            return response.getRawStatusCode();
+        } catch (IOException e) {
+            response.close();
+            throw new ResourceAccessException(e.getMessage(), e);
+        }
+    }
+
+    private void copy(ClientHttpResponse upstreamResponse, OutputStream out) throws IOException {
+        try (ClientHttpResponse response = upstreamResponse; InputStream in = response.getBody()) {
+            byte[] buffer = new byte[streamBufferSize];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> CompletableFuture<ResponseEntity<T>> processGetAsync(boolean cacheable, String url,
+            Class<T> responseType, Object... uriVariables) {
+        LogEntry logEntry = begin(url);
+
+        CacheableGet<T> get = cacheable ? newCacheableGet(url, responseType, uriVariables) : null;
+        CacheValue value = cacheable ? get.getCacheValue() : null;
+        Freshness freshness = value == null ? null : get.getCache().getFreshness(value);
+        if ((value != null) && (freshness != Freshness.EXPIRED)) {
+            if (freshness != Freshness.FRESH) {
+                cacheRefresher.refresh(value.getKey(), () -> getForEntityCoalesced(get, value));
+            }
+            // Type safety: The expression of type ResponseEntity needs unchecked conversion
+            // to conform to ResponseEntity<T>.
+            ResponseEntity<T> response = value.getResponse();
+            compressedBodyAdvice.prepare(httpServletRequest, get.getCache(), value, response);
+            return completeCached(logEntry, response);
+        }
+        ResponseEntity<T> negativeResponse = cacheable ? get.getNegativeResponse() : null;
+        if (negativeResponse != null) {
+            return completeCached(logEntry, negativeResponse);
+        }
+
+        CacheValue staleValue = (value != null) && get.getCache().isServableOnError(value) ? value : null;
+        CompletableFuture<ResponseEntity<T>> future = cacheable
+                ? coalescer.executeAsync(get.newCacheKey(),
+                        () -> getForEntityIfModifiedAsync(get, value)
+                                .handle((response, t) -> cacheResponse(get, value, response, t)))
+                : getForEntityAsync(url, responseType, uriVariables);
+        return future.handle((response, t) -> complete(logEntry, response, t, staleValue));
+    }
+
+    protected <T> CompletableFuture<ResponseEntity<T>> processPostAsync(String url, Object request,
+            Class<T> responseType, Object... uriVariables) {
+        LogEntry logEntry = begin(url);
+        return upstreamGuard
+                .executeAsync(url, () -> reactiveUpstreamClient.postForEntity(url, request, responseType, uriVariables))
+                .handle((response, t) -> complete(logEntry, response, t, null));
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> CompletableFuture<ResponseEntity<T>> processDeleteAsync(String url, Object... uriVariables) {
+        LogEntry logEntry = begin(url);
+        // Type safety: The expression of type ResponseEntity needs unchecked conversion
+        // to conform to ResponseEntity<T>.
+        return upstreamGuard.executeAsync(url, () -> reactiveUpstreamClient.delete(url, uriVariables))
+                .handle((response, t) -> complete(logEntry, (ResponseEntity<T>) (ResponseEntity<?>) response, t,
+                        null));
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> completeCached(LogEntry logEntry, ResponseEntity<T> response) {
+        logEntry.setCached(true);
+        end(logEntry, response);
+        logEntryWriter.write(logEntry);
+        return CompletableFuture.completedFuture(response);
+    }
+
+    // End an asynchronous call: log its outcome and turn its exception, if any, into
+    // an error response or into the stale cached value.
+    private <T> ResponseEntity<T> complete(LogEntry logEntry, ResponseEntity<T> response, Throwable t,
+            CacheValue staleValue) {
+        if (t == null) {
+            end(logEntry, response);
+        } else {
+            RestClientException e = ReactiveUpstreamClient.toRestClientException(
+                    (t instanceof CompletionException) && (t.getCause() != null) ? t.getCause() : t);
+            response = failOrServeStale(logEntry, e, staleValue);
+        }
+        logEntryWriter.write(logEntry);
+        return response;
+    }
+
+    // Serve the stale cached value, if any, when the upstream server failed
+    // (stale-if-error), else the error response.
+    @SuppressWarnings("unchecked")
+    private <T> ResponseEntity<T> failOrServeStale(LogEntry logEntry, RestClientException e,
+            CacheValue staleValue) {
+        if ((staleValue == null) || !UpstreamGuard.isFailure(e)) {
+            end(logEntry, e);
+            return fail(e);
+        }
+
+        // Type safety: The expression of type ResponseEntity needs unchecked conversion
+        // to conform to ResponseEntity<T>.
+        ResponseEntity<T> staleResponse = staleValue.getResponse();
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(staleResponse.getHeaders());
+        headers.set(HermesClient.STALE_RESPONSE_HEADER, Boolean.TRUE.toString());
+        ResponseEntity<T> response = ResponseEntity.status(staleResponse.getStatusCodeValue()).headers(headers)
+                .body(staleResponse.getBody());
+        logEntry.setCached(true);
+        logEntry.setErrorMessage(HermesClient.getErrorMessage(e));
+        end(logEntry, response);
         return response;
     }
 
@@ -146,14 +851,15 @@ public class HermesController {
 
         ResponseEntity<T> response = null;
         try {
-            response = hermesClient.createRestTemplate().postForEntity(url, request, responseType, uriVariables);
+            response = upstreamGuard.execute(url,
+                    () -> hermesClient.getRestTemplate().postForEntity(url, request, responseType, uriVariables));
             end(logEntry, response);
         } catch (RestClientException e) {
             response = fail(e);
             end(logEntry, e);
         }
 
-        logEntryService.create(logEntry);
+        logEntryWriter.write(logEntry);
         return response;
     }
 
@@ -162,32 +868,45 @@ public class HermesController {
 
         ResponseEntity<T> response = null;
         try {
-            hermesClient.createRestTemplate().delete(url, uriVariables);
+            upstreamGuard.execute(url, () -> {
+                hermesClient.getRestTemplate().delete(url, uriVariables);
+                return null;
+            });
             end(logEntry, response);
         } catch (RestClientException e) {
             response = fail(e);
             end(logEntry, e);
         }
 
-        logEntryService.create(logEntry);
+        logEntryWriter.write(logEntry);
         return response;
     }
 
     protected void end(LogEntry logEntry, ResponseEntity<?> response) {
         logEntry.setDuration(System.currentTimeMillis() - logEntry.getDate().getTime());
-        logEntry.setResponseStatus(response.getStatusCode().toString());
-        String msg = MessageFormat.format(CACHED_FROM_TO_PATTERN, logEntry.getApplicationUrl(),
-                logEntry.getResponseStatus(), logEntry.isCached() ? CACHED : NOT_CACHED, logEntry.getDuration());
-        logger.info(msg);
+        logEntry.setResponseStatus(getStatusText(response.getStatusCodeValue()));
+        if (logEntry.isSampled()) {
+            logger.info(CACHED_FROM_TO_PATTERN, logEntry.getApplicationUrl(), logEntry.getResponseStatus(),
+                    logEntry.isCached() ? CACHED : NOT_CACHED, logEntry.getDuration());
+        }
     }
 
     protected void end(LogEntry logEntry, RestClientException e) {
         logEntry.setDuration(System.currentTimeMillis() - logEntry.getDate().getTime());
         logEntry.setResponseStatus(e.getClass().getName());
         logEntry.setErrorMessage(HermesClient.getErrorMessage(e));
-        String msg = MessageFormat.format(CACHED_FROM_TO_PATTERN, logEntry.getApplicationUrl(),
-                logEntry.getErrorMessage(), logEntry.isCached() ? CACHED : NOT_CACHED, logEntry.getDuration());
-        logger.info(msg);
+        // Failures are always logged.
+        if (logger.isInfoEnabled()) {
+            logger.info(CACHED_FROM_TO_PATTERN, logEntry.getApplicationUrl(), logEntry.getErrorMessage(),
+                    logEntry.isCached() ? CACHED : NOT_CACHED, logEntry.getDuration());
+        }
+    }
+
+    // Such as "200 OK", or only the code if it is not a standard status (which
+    // upstream servers may send, see streamGet).
+    private static String getStatusText(int statusCode) {
+        HttpStatus status = HttpStatus.resolve(statusCode);
+        return status == null ? Integer.toString(statusCode) : status.toString();
     }
 
     protected <T> ResponseEntity<T> fail(RestClientException e) {
@@ -201,17 +920,6 @@ public class HermesController {
         return applications.get(LOCALHOST_ADDRESS.equals(remoteHost) ? LOCALHOST_HOST : remoteHost);
     }
 
-    private static String resolveHost(String host) {
-        String hostName;
-        try {
-            InetAddress address = InetAddress.getByName(host);
-            hostName = address.getHostName();
-        } catch (UnknownHostException e) {
-            hostName = host;
-        }
-        return hostName;
-    }
-
     private static void buildApplicationMap() {
         if (applications != null) {
             return;
@@ -249,7 +957,9 @@ public class HermesController {
 
     private static int getResponseStatus(RestClientException e) {
         int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
-        if (e instanceof RestClientResponseException) {
+        if (e instanceof UpstreamUnavailableException) {
+            status = HttpStatus.SERVICE_UNAVAILABLE.value();
+        } else if (e instanceof RestClientResponseException) {
             RestClientResponseException ex = (RestClientResponseException) e;
             status = ex.getRawStatusCode();
         }
@@ -258,7 +968,34 @@ public class HermesController {
 
     @PostConstruct
     private void init() {
-        cache = new ResponseEntityCache(getClass().getName(), defaultCacheLifetime, defaultCachePruneDelay);
+        versionWarningLimiter = new LogRateLimiter(versionWarningInterval);
+        cache = cacheRegistry.getCache(getClass().getName(), c -> {
+            c.setLifetime(defaultCacheLifetime);
+            c.setMaxEntries(defaultCacheMaxEntries);
+            c.setMaxWeight(defaultCacheMaxBytes);
+            c.setOffHeap(defaultCacheOffHeap);
+            c.setStaleLifetime(defaultCacheStaleLifetime);
+            c.setStaleIfErrorLifetime(defaultCacheStaleIfErrorLifetime);
+            c.setRevalidationLifetime(defaultCacheRevalidationLifetime);
+            c.setRefreshAhead(defaultCacheRefreshAhead);
+            c.setRefreshAheadHits(defaultCacheRefreshAheadHits);
+        });
+        negativeCache = cacheRegistry.getCache(cache.getName() + NEGATIVE_CACHE_SUFFIX, c -> {
+            c.setLifetime(defaultNegativeCacheLifetime);
+            c.setMaxEntries(defaultNegativeCacheMaxEntries);
+        });
+        setNegativeCacheStatuses(defaultNegativeCacheStatuses);
+        caches.add(cache);
+        caches.add(negativeCache);
+        defaultRoute = new CacheRoute(cache, negativeCache, Collections.emptySet(), new String[0]);
+        FunctionCounter.builder(COLLAPSED_METER, coalescer, RequestCoalescer::getCollapsedCount)
+                .tag(CONTROLLER_TAG, getClass().getName())
+                .description("Cache misses that waited for the upstream call of an identical request")
+                .register(meterRegistry);
+        Gauge.builder(IN_FLIGHT_METER, coalescer, RequestCoalescer::getInFlightCount)
+                .tag(CONTROLLER_TAG, getClass().getName())
+                .description("Upstream calls of cache misses in progress")
+                .register(meterRegistry);
     }
 
 }
@@ -1,24 +1,143 @@
 package onl.gcm.hermes.controller;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import onl.gcm.hermes.client.HermesClient;
+import onl.gcm.hermes.server.CacheInfo;
+import onl.gcm.hermes.server.CacheInvalidation;
+import onl.gcm.hermes.server.ResponseEntityCache;
+import onl.gcm.hermes.server.ResponseEntityCacheRegistry;
 
 @RestController
+@PropertySource("classpath:servers.properties")
+@PropertySource("classpath:servers-${spring.profiles.active}.properties")
 @PropertySource("classpath:hermes.properties")
 @PropertySource("classpath:hermes-${spring.profiles.active}.properties")
 public class ServerController extends HermesController {
 
+    private static final String DEFAULT_ENTRY_LIMIT = "100";
+    private static final String PATH_SEPARATOR = "/";
+
+    // Base URL of this node, to which the warmed paths are appended. Configured
+    // rather than taken from the request, whose Host header is not trusted.
+    @Value("${hermes.server.cache.warm.url}")
+    private String warmUrl;
+
+    @Autowired
+    private ResponseEntityCacheRegistry cacheRegistry;
+
+    @Autowired
+    private HermesClient hermesClient;
+
     @GetMapping("${hermes.server.path.alive}")
     protected ResponseEntity<Void> isAlive() {
         return ResponseEntity.ok().build();
     }
 
+    // Clear every cache of the server, on every node.
     @GetMapping("${hermes.server.path.cache.clear}")
     protected ResponseEntity<Void> emptyCache() {
-        clearCache();
+        cacheRegistry.clearAll();
+        return ResponseEntity.ok().build();
+    }
+
+    @GetMapping("${hermes.server.path.caches}")
+    protected ResponseEntity<List<CacheInfo>> getCaches() {
+        return ResponseEntity.ok(cacheRegistry.getCaches().stream().map(cache -> new CacheInfo(cache, 0))
+                .collect(Collectors.toList()));
+    }
+
+    // Settings and counters of the cache, with its first limit entries.
+    @GetMapping("${hermes.server.path.caches}/{name:.+}")
+    protected ResponseEntity<CacheInfo> getCache(@PathVariable String name,
+            @RequestParam(defaultValue = DEFAULT_ENTRY_LIMIT) int limit) {
+        ResponseEntityCache cache = cacheRegistry.getCache(name);
+        return cache == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(new CacheInfo(cache, limit));
+    }
+
+    // Clear the cache, on every node.
+    @DeleteMapping("${hermes.server.path.caches}/{name:.+}")
+    protected ResponseEntity<Void> deleteCache(@PathVariable String name) {
+        ResponseEntityCache cache = cacheRegistry.getCache(name);
+        if (cache == null) {
+            return ResponseEntity.notFound().build();
+        }
+        cacheRegistry.invalidate(CacheInvalidation.clear(name));
         return ResponseEntity.ok().build();
     }
 
+    // Warm the caches of this node by requesting the paths (relative to the server,
+    // such as /distantworld/test/1) through it, one after the other. Returns the
+    // status of each path, or 400 Bad Request if a path is not a local absolute
+    // path.
+    @PostMapping("${hermes.server.path.caches}${hermes.server.path.caches.warm}")
+    protected ResponseEntity<Map<String, Integer>> warmCaches(@RequestBody List<String> paths) {
+        List<URI> uris = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            URI uri = toWarmUri(path);
+            if (uri == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            uris.add(uri);
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HermesClient.HERMES_CLIENT_VERSION_HEADER, hermesClient.getVersion());
+        HttpEntity<Void> request = new HttpEntity<>(headers);
+        Map<String, Integer> statuses = new LinkedHashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            int status;
+            try {
+                status = hermesClient.getRestTemplate()
+                        .exchange(uris.get(i), HttpMethod.GET, request, byte[].class).getStatusCodeValue();
+            } catch (RestClientResponseException e) {
+                status = e.getRawStatusCode();
+            } catch (RestClientException e) {
+                status = HttpStatus.SERVICE_UNAVAILABLE.value();
+            }
+            statuses.put(path, status);
+        }
+        return ResponseEntity.ok(statuses);
+    }
+
+    // URI of the path on this node, or null unless the path starts with a single
+    // slash (no scheme, no authority).
+    private URI toWarmUri(String path) {
+        if ((path == null) || !path.startsWith(PATH_SEPARATOR) || path.startsWith(PATH_SEPARATOR + PATH_SEPARATOR)) {
+            return null;
+        }
+        UriComponents components = UriComponentsBuilder.fromUriString(path).build();
+        if ((components.getScheme() != null) || (components.getHost() != null)) {
+            return null;
+        }
+        return UriComponentsBuilder.fromHttpUrl(warmUrl).path(components.getPath()).query(components.getQuery())
+                .build().encode().toUri();
+    }
+
 }
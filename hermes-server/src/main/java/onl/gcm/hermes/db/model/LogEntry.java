@@ -7,6 +7,8 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Lob;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Transient;
 
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -20,8 +22,11 @@ import lombok.NoArgsConstructor;
 @Builder
 public class LogEntry {
 
+    // A pooled sequence (instead of an identity column) lets Hibernate batch the
+    // inserts of log entries.
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "log_entry_sequence")
+    @SequenceGenerator(name = "log_entry_sequence", sequenceName = "log_entry_sequence", allocationSize = 50)
     private Long id;
 
     private final Date date = new Date();
@@ -47,4 +52,8 @@ public class LogEntry {
     
     private String clientVersion;
 
+    // Whether the proxy log lines of the request are logged (not persisted).
+    @Transient
+    private boolean sampled;
+
 }
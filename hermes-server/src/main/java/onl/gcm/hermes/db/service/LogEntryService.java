@@ -6,4 +6,6 @@ public interface LogEntryService {
 
     public LogEntry create(LogEntry logEntry);
 
+    public Iterable<LogEntry> createAll(Iterable<LogEntry> logEntries);
+
 }
@@ -0,0 +1,10 @@
+package onl.gcm.hermes.db.service;
+
+import onl.gcm.hermes.db.model.LogEntry;
+
+public interface LogEntryWriter {
+
+    // Queue the log entry to be persisted later, without waiting for the database.
+    public void write(LogEntry logEntry);
+
+}
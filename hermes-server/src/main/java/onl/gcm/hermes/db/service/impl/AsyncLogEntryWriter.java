@@ -0,0 +1,220 @@
+package onl.gcm.hermes.db.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import onl.gcm.hermes.db.model.LogEntry;
+import onl.gcm.hermes.db.service.LogEntryService;
+import onl.gcm.hermes.db.service.LogEntryWriter;
+
+// Bounded queue of log entries drained by a single writer thread, which
+// persists them in batches so that requests never wait for the database.
+@Service
+public class AsyncLogEntryWriter implements LogEntryWriter {
+
+    public enum QueueFullPolicy {
+        // Discard the log entry.
+        DROP,
+        // Wait for the queue to have room, up to the configured timeout, then discard.
+        BLOCK,
+        // Persist the log entry synchronously on the calling thread.
+        CALLER_RUNS
+    }
+
+    private static final String THREAD_NAME = "hermes-log-writer";
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+    private static final String METER_PREFIX = "hermes.log.";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${hermes.server.log.queue.capacity}")
+    private int queueCapacity;
+
+    @Value("${hermes.server.log.batch.size}")
+    private int batchSize;
+
+    @Value("${hermes.server.log.flush.interval}")
+    private long flushInterval;
+
+    @Value("${hermes.server.log.queue.full.policy}")
+    private QueueFullPolicy queueFullPolicy;
+
+    @Value("${hermes.server.log.queue.full.timeout}")
+    private long queueFullTimeout;
+
+    @Autowired
+    private LogEntryService logEntryService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final LongAdder writtenCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    private BlockingQueue<LogEntry> queue;
+    // Duration of the database writes, of a batch or of a single entry.
+    private Timer writeTimer;
+    private Thread writerThread;
+    private volatile boolean running;
+
+    @Override
+    public void write(LogEntry logEntry) {
+        if (queue.offer(logEntry)) {
+            return;
+        }
+
+        switch (queueFullPolicy) {
+            case BLOCK:
+                try {
+                    if (!queue.offer(logEntry, queueFullTimeout, TimeUnit.MILLISECONDS)) {
+                        droppedCount.increment();
+                    }
+                } catch (InterruptedException e) {
+                    droppedCount.increment();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case CALLER_RUNS:
+                persist(logEntry);
+                break;
+            default:
+                droppedCount.increment();
+                break;
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    private void drain() {
+        List<LogEntry> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                LogEntry logEntry = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (logEntry != null) {
+                    batch.add(logEntry);
+                    fillBatch(batch);
+                    flush(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Persist what is left on shutdown.
+        while (!queue.isEmpty()) {
+            queue.drainTo(batch, batchSize);
+            flush(batch);
+        }
+    }
+
+    // Wait for the batch to be full, up to the flush interval.
+    private void fillBatch(List<LogEntry> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if ((batch.size() >= batchSize) || (remaining <= 0)) {
+                break;
+            }
+            LogEntry logEntry = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (logEntry == null) {
+                break;
+            }
+            batch.add(logEntry);
+        }
+    }
+
+    private void flush(List<LogEntry> batch) {
+        long start = System.nanoTime();
+        try {
+            logEntryService.createAll(batch);
+            writtenCount.add(batch.size());
+        } catch (RuntimeException e) {
+            failedCount.add(batch.size());
+            logger.error("Could not write {} log entries.", batch.size(), e);
+        }
+        writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batch.clear();
+    }
+
+    private void persist(LogEntry logEntry) {
+        long start = System.nanoTime();
+        try {
+            logEntryService.create(logEntry);
+            writtenCount.increment();
+        } catch (RuntimeException e) {
+            failedCount.increment();
+            logger.error("Could not write log entry.", e);
+        }
+        writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void bindMetrics() {
+        writeTimer = Timer.builder(METER_PREFIX + "writes")
+                .description("Database writes of log entries")
+                .register(meterRegistry);
+        Gauge.builder(METER_PREFIX + "queue.size", this, AsyncLogEntryWriter::getQueueSize)
+                .description("Log entries waiting to be written")
+                .register(meterRegistry);
+        FunctionCounter.builder(METER_PREFIX + "written", this, AsyncLogEntryWriter::getWrittenCount)
+                .description("Log entries written")
+                .register(meterRegistry);
+        FunctionCounter.builder(METER_PREFIX + "dropped", this, AsyncLogEntryWriter::getDroppedCount)
+                .description("Log entries discarded because the queue was full")
+                .register(meterRegistry);
+        FunctionCounter.builder(METER_PREFIX + "failed", this, AsyncLogEntryWriter::getFailedCount)
+                .description("Log entries that could not be written")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    private void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        bindMetrics();
+        running = true;
+        writerThread = new Thread(this::drain, THREAD_NAME);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        writerThread.join(SHUTDOWN_TIMEOUT);
+    }
+
+}
@@ -20,4 +20,9 @@ public class LogEntryServiceImpl implements LogEntryService {
         return repository.save(logEntry);
     }
 
+    @Transactional
+    public Iterable<LogEntry> createAll(Iterable<LogEntry> logEntries) {
+        return repository.saveAll(logEntries);
+    }
+
 }
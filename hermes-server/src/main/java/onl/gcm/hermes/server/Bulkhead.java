@@ -0,0 +1,45 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Limit the number of concurrent calls to an upstream server, so that a slow
+// one cannot hold every thread or connection.
+public class Bulkhead {
+
+    private final Semaphore semaphore;
+    private final int maxConcurrentCalls;
+    private final long maxWait;
+
+    public Bulkhead(int maxConcurrentCalls, long maxWait) {
+        this.semaphore = new Semaphore(maxConcurrentCalls);
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWait = maxWait;
+    }
+
+    // Wait up to maxWait ms for a call slot, return false if none is available.
+    public boolean tryAcquire() {
+        if (maxWait <= 0) {
+            return semaphore.tryAcquire();
+        }
+        try {
+            return semaphore.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void release() {
+        semaphore.release();
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getActiveCalls() {
+        return maxConcurrentCalls - semaphore.availablePermits();
+    }
+
+}
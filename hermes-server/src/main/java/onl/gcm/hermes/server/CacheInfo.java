@@ -0,0 +1,95 @@
+package onl.gcm.hermes.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Description of a ResponseEntityCache returned by the admin endpoints: its
+// settings, its counters and, on demand, some of its entries.
+@Data
+@NoArgsConstructor
+public class CacheInfo {
+
+    @Data
+    @NoArgsConstructor
+    public static class EntryInfo {
+        private String url;
+        private String responseType;
+        private List<Object> uriVariables;
+        private int status;
+        // Age in ms.
+        private long age;
+        private ResponseEntityCache.Freshness freshness;
+        private long weight;
+        private Set<String> tags;
+        private String etag;
+        private String lastModified;
+
+        public EntryInfo(ResponseEntityCache cache, ResponseEntityCache.CacheValue value) {
+            url = value.getKey().getUrl();
+            responseType = value.getKey().getResponseType().getName();
+            uriVariables = Arrays.asList(value.getKey().getUriVariables());
+            status = value.getResponse().getStatusCodeValue();
+            age = cache.getAge(value);
+            freshness = cache.getFreshness(value);
+            weight = value.getWeight();
+            tags = value.getTags();
+            etag = value.getEtag();
+            lastModified = value.getLastModified();
+        }
+    }
+
+    private String name;
+    private long lifetime;
+    private long staleLifetime;
+    private long staleIfErrorLifetime;
+    private long revalidationLifetime;
+    private long maxEntries;
+    private long maxBytes;
+    private boolean offHeap;
+    private int size;
+    private long weight;
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long evictionCount;
+    private long expirationCount;
+    private long revalidationCount;
+    private long rejectionCount;
+    private List<EntryInfo> entries;
+
+    // Description of the cache with at most maxEntries of its entries (none if 0).
+    public CacheInfo(ResponseEntityCache cache, int maxEntries) {
+        name = cache.getName();
+        lifetime = cache.getLifetime();
+        staleLifetime = cache.getStaleLifetime();
+        staleIfErrorLifetime = cache.getStaleIfErrorLifetime();
+        revalidationLifetime = cache.getRevalidationLifetime();
+        this.maxEntries = cache.getMaxEntries();
+        maxBytes = cache.getMaxWeight();
+        offHeap = cache.isOffHeap();
+        size = cache.getSize();
+        weight = cache.getWeight();
+        hitCount = cache.getHitCount();
+        missCount = cache.getMissCount();
+        putCount = cache.getPutCount();
+        evictionCount = cache.getEvictionCount();
+        expirationCount = cache.getExpirationCount();
+        revalidationCount = cache.getRevalidationCount();
+        rejectionCount = cache.getRejectionCount();
+        if (maxEntries > 0) {
+            entries = new ArrayList<>();
+            for (ResponseEntityCache.CacheValue value : cache.getValues()) {
+                if (entries.size() >= maxEntries) {
+                    break;
+                }
+                entries.add(new EntryInfo(cache, value));
+            }
+        }
+    }
+
+}
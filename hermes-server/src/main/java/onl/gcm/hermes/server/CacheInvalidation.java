@@ -0,0 +1,65 @@
+package onl.gcm.hermes.server;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Invalidation of the entries of a cache, propagated to the other Hermes server
+// nodes by a CacheInvalidationBus.
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheInvalidation {
+
+    public enum Type {
+        // Remove every entry.
+        CLEAR,
+        // Remove the entry of the key (url, responseType, uriVariables).
+        KEY,
+        // Remove every entry of the response type. Predicates cannot be sent to the
+        // other nodes, which remove every entry of the type instead.
+        RESPONSE_TYPE,
+        // Remove every entry of the URL (template).
+        URL,
+        // Remove every entry whose URL (template) starts with url.
+        URL_PREFIX,
+        // Remove every entry of the tag.
+        TAG
+    }
+
+    // Node that published the invalidation.
+    private String origin;
+    private String cacheName;
+    private Type type;
+    private String url;
+    private String responseType;
+    private Object[] uriVariables;
+    private String tag;
+
+    public static CacheInvalidation clear(String cacheName) {
+        return new CacheInvalidation(null, cacheName, Type.CLEAR, null, null, null, null);
+    }
+
+    public static CacheInvalidation key(String cacheName, String url, Class<?> responseType,
+            Object... uriVariables) {
+        return new CacheInvalidation(null, cacheName, Type.KEY, url, responseType.getName(), uriVariables, null);
+    }
+
+    public static CacheInvalidation responseType(String cacheName, Class<?> responseType) {
+        return new CacheInvalidation(null, cacheName, Type.RESPONSE_TYPE, null, responseType.getName(), null,
+                null);
+    }
+
+    public static CacheInvalidation url(String cacheName, String url) {
+        return new CacheInvalidation(null, cacheName, Type.URL, url, null, null, null);
+    }
+
+    public static CacheInvalidation urlPrefix(String cacheName, String prefix) {
+        return new CacheInvalidation(null, cacheName, Type.URL_PREFIX, prefix, null, null, null);
+    }
+
+    public static CacheInvalidation tag(String cacheName, String tag) {
+        return new CacheInvalidation(null, cacheName, Type.TAG, null, null, null, tag);
+    }
+
+}
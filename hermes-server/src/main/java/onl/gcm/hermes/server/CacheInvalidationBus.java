@@ -0,0 +1,16 @@
+package onl.gcm.hermes.server;
+
+import java.util.function.Consumer;
+
+// Propagates the cache invalidations of a node to the other nodes, so that they
+// do not keep serving data that is known to be outdated.
+public interface CacheInvalidationBus {
+
+    // Send the invalidation to the other nodes. The publisher is expected to have
+    // already applied it locally.
+    void publish(CacheInvalidation invalidation);
+
+    // Register a listener of the invalidations published by the other nodes.
+    void subscribe(Consumer<CacheInvalidation> listener);
+
+}
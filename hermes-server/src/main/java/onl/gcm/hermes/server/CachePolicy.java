@@ -0,0 +1,44 @@
+package onl.gcm.hermes.server;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Cache policy of a route of a HermesController, declared on its handler method.
+// The lifetimes and sizes accept property placeholders; when one of them (or the
+// cache name) is set, the route gets its own caches (for its responses and for its
+// error responses), which inherit the other settings of the caches of its
+// controller. Otherwise the route shares the caches of its controller.
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CachePolicy {
+
+    // Name of the cache of the route, by default the name of the controller cache
+    // followed by the name of the method. Routes naming the same cache share it.
+    String cache() default "";
+
+    // Lifetime in ms (ResponseEntityCache.INFINITE_LIFETIME for no expiry).
+    String lifetime() default "";
+
+    // Maximum number of entries (ResponseEntityCache.UNLIMITED for no limit).
+    String maxEntries() default "";
+
+    // Maximum estimated size of the entries in bytes.
+    String maxBytes() default "";
+
+    // Lifetime in ms of the error responses.
+    String negativeLifetime() default "";
+
+    // Error statuses whose responses are cached too, besides those of the
+    // controller (such as 404). They are cached without body but with their
+    // exception message header. Successful responses are always cached.
+    int[] statuses() default {};
+
+    // Request headers whose values are part of the cache key, and which are
+    // forwarded to the upstream server.
+    String[] varyBy() default {};
+
+}
@@ -0,0 +1,83 @@
+package onl.gcm.hermes.server;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+// Refresh cache entries in the background, at most once at a time per key, so
+// that callers are served stale or about to expire entries without waiting for
+// the upstream server.
+@Component
+@PropertySource("classpath:servers.properties")
+public class CacheRefresher {
+
+    private static final String THREAD_NAME_PREFIX = "hermes-cache-refresh-";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${default.server.cache.refresh.threads}")
+    private int threads;
+
+    @Value("${default.server.cache.refresh.queue}")
+    private int queueCapacity;
+
+    private final Set<Object> refreshing = ConcurrentHashMap.newKeySet();
+
+    private ThreadPoolExecutor executor;
+
+    // Submit the refresh task unless one is already pending for this key. Return
+    // false if it has not been submitted.
+    public boolean refresh(Object key, Runnable task) {
+        if (!refreshing.add(key)) {
+            return false;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Background refresh of {} failed: {}", key, e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Queue full: the entry will be refreshed by a later hit.
+            refreshing.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public int getPendingCount() {
+        return refreshing.size();
+    }
+
+    @PostConstruct
+    private void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(THREAD_NAME_PREFIX);
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+}
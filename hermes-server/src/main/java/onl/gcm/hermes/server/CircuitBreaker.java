@@ -0,0 +1,173 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Count based circuit breaker. It opens when the failure rate or the slow call
+// rate of the last calls reaches its threshold, then rejects every call for the
+// open duration. After that, it is half-open: a probe (the alive check of the
+// upstream server if any, else the next call) decides whether it closes or opens
+// again.
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+    private static final int PERCENT = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallDuration;
+    private final int slowCallRateThreshold;
+    private final long openDuration;
+    private final BooleanSupplier aliveCheck;
+    private final Executor probeExecutor;
+    private final TimeSource timeSource;
+
+    // Ring buffer of the outcomes of the last calls (bit flags).
+    private final byte[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int failureCount;
+    private int slowCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+    private long rejectedCount;
+
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold,
+            long slowCallDuration, int slowCallRateThreshold, long openDuration, BooleanSupplier aliveCheck,
+            Executor probeExecutor, TimeSource timeSource) {
+        this.name = name;
+        this.window = new byte[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDuration = slowCallDuration;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openDuration = openDuration;
+        this.aliveCheck = aliveCheck;
+        this.probeExecutor = probeExecutor;
+        this.timeSource = timeSource;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    // Return whether a call is permitted. A permitted call must report its outcome
+    // with onResult.
+    public synchronized boolean tryAcquirePermission() {
+        if ((state == State.OPEN)
+                && (timeSource.nanoTime() - openedAt >= TimeUnit.MILLISECONDS.toNanos(openDuration))) {
+            halfOpen();
+        }
+
+        boolean permitted;
+        if (state == State.CLOSED) {
+            permitted = true;
+        } else if ((state == State.HALF_OPEN) && !probing) {
+            // Without alive check, this call is the probe.
+            probing = true;
+            permitted = true;
+        } else {
+            permitted = false;
+        }
+        if (!permitted) {
+            rejectedCount++;
+        }
+        return permitted;
+    }
+
+    public synchronized void onResult(boolean failure, long durationNanos) {
+        boolean slow = durationNanos >= TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+        if (state == State.HALF_OPEN) {
+            if (aliveCheck == null) {
+                endProbe(!failure && !slow);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Late outcome of a call started before the circuit opened.
+            return;
+        }
+
+        record((byte) ((failure ? FAILURE : SUCCESS) | (slow ? SLOW : SUCCESS)));
+        if ((windowCount >= minimumCalls) && ((failureCount * PERCENT >= failureRateThreshold * windowCount)
+                || (slowCount * PERCENT >= slowCallRateThreshold * windowCount))) {
+            open();
+        }
+    }
+
+    private void record(byte outcome) {
+        if (windowCount == window.length) {
+            byte oldest = window[windowIndex];
+            failureCount -= oldest & FAILURE;
+            slowCount -= (oldest & SLOW) >> 1;
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = outcome;
+        failureCount += outcome & FAILURE;
+        slowCount += (outcome & SLOW) >> 1;
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    private void open() {
+        logger.warn("Circuit breaker {} is open.", name);
+        state = State.OPEN;
+        openedAt = timeSource.nanoTime();
+        probing = false;
+    }
+
+    private void halfOpen() {
+        state = State.HALF_OPEN;
+        probing = false;
+        if (aliveCheck != null) {
+            probing = true;
+            probeExecutor.execute(this::probe);
+        }
+    }
+
+    private void probe() {
+        boolean alive;
+        try {
+            alive = aliveCheck.getAsBoolean();
+        } catch (RuntimeException e) {
+            alive = false;
+        }
+        synchronized (this) {
+            endProbe(alive);
+        }
+    }
+
+    private void endProbe(boolean success) {
+        if (success) {
+            logger.info("Circuit breaker {} is closed.", name);
+            state = State.CLOSED;
+            probing = false;
+            windowIndex = 0;
+            windowCount = 0;
+            failureCount = 0;
+            slowCount = 0;
+        } else {
+            open();
+        }
+    }
+
+}
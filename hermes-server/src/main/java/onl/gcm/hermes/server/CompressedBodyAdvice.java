@@ -0,0 +1,199 @@
+package onl.gcm.hermes.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.HttpEntityMethodProcessor;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+
+// Serves cached responses to the callers accepting gzip with the compressed body
+// kept in their cache value, instead of serializing and compressing their body
+// again on each hit. The other responses are compressed by the servlet container,
+// if enabled (server.compression.*).
+@Component
+@PropertySource("classpath:servers.properties")
+public class CompressedBodyAdvice {
+
+    private static final String COMPRESSED_BODY_ATTRIBUTE = CompressedBodyAdvice.class.getName();
+    private static final byte[] NOT_COMPRESSED = new byte[0];
+    private static final String GZIP = "gzip";
+    private static final String ENCODING_SEPARATOR = ",";
+    private static final String PARAMETER_SEPARATOR = ";";
+    private static final String ZERO_QUALITY = "q=0";
+    private static final String WEAK_ETAG_PREFIX = "W/";
+    private static final String ETAG_QUOTE = "\"";
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    // Body of the response being served, with its compressed form.
+    private static final class CompressedBody {
+        private final Object body;
+        private final byte[] compressed;
+
+        private CompressedBody(Object body, byte[] compressed) {
+            this.body = body;
+            this.compressed = compressed;
+        }
+    }
+
+    private final class CompressedBodyHandler implements HandlerMethodReturnValueHandler {
+        private final HandlerMethodReturnValueHandler delegate;
+
+        private CompressedBodyHandler(HandlerMethodReturnValueHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean supportsReturnType(MethodParameter returnType) {
+            return delegate.supportsReturnType(returnType);
+        }
+
+        @Override
+        public void handleReturnValue(Object returnValue, MethodParameter returnType,
+                ModelAndViewContainer mavContainer, NativeWebRequest webRequest) throws Exception {
+            delegate.handleReturnValue(
+                    getCompressedResponse(webRequest.getNativeRequest(HttpServletRequest.class), returnValue),
+                    returnType, mavContainer, webRequest);
+        }
+    }
+
+    @Value("${hermes.server.compression.cached}")
+    private boolean enabled;
+
+    // Smaller JSON bodies are served uncompressed.
+    @Value("${hermes.server.compression.min.size}")
+    private int minSize;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private RequestMappingHandlerAdapter handlerAdapter;
+
+    // Prepare the response of the cache value, about to be returned by the
+    // controller, to be served compressed if the caller accepts gzip. Its
+    // compressed body is computed on the first call and kept in the cache value.
+    public void prepare(HttpServletRequest request, ResponseEntityCache cache, CacheValue value,
+            ResponseEntity<?> response) {
+        Object body = response.getBody();
+        if (!enabled || (body == null) || (body instanceof byte[]) || (body instanceof CharSequence)
+                || !acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+            return;
+        }
+
+        byte[] compressed = value.getCompressedBody();
+        if (compressed == null) {
+            compressed = compress(body);
+            cache.setCompressedBody(value, compressed);
+        }
+        if (compressed.length > 0) {
+            request.setAttribute(COMPRESSED_BODY_ATTRIBUTE, new CompressedBody(body, compressed));
+        }
+    }
+
+    private byte[] compress(Object body) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(body);
+            if (json.length < minSize) {
+                return NOT_COMPRESSED;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(json);
+            }
+            return out.toByteArray();
+        } catch (JsonProcessingException e) {
+            return NOT_COMPRESSED;
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+            return NOT_COMPRESSED;
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(ENCODING_SEPARATOR)) {
+            String[] parameters = encoding.split(PARAMETER_SEPARATOR);
+            if (GZIP.equalsIgnoreCase(parameters[0].trim())) {
+                return (parameters.length == 1) || !ZERO_QUALITY.equals(parameters[1].trim());
+            }
+        }
+        return false;
+    }
+
+    // Response to serve instead of the return value of the handler: the compressed
+    // body of the prepared response, as bytes, if the return value is that
+    // response.
+    private Object getCompressedResponse(HttpServletRequest request, Object returnValue) {
+        if ((request == null) || !(returnValue instanceof ResponseEntity)) {
+            return returnValue;
+        }
+        ResponseEntity<?> response = (ResponseEntity<?>) returnValue;
+        Object attribute = request.getAttribute(COMPRESSED_BODY_ATTRIBUTE);
+        if (!(attribute instanceof CompressedBody) || (((CompressedBody) attribute).body != response.getBody())) {
+            return returnValue;
+        }
+
+        byte[] compressed = ((CompressedBody) attribute).compressed;
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(response.getHeaders());
+        if (headers.getContentType() == null) {
+            headers.setContentType(MediaType.APPLICATION_JSON);
+        }
+        String etag = headers.getETag();
+        if (etag != null) {
+            headers.setETag(getGzipEtag(etag));
+        }
+        headers.set(HttpHeaders.CONTENT_ENCODING, GZIP);
+        headers.setContentLength(compressed.length);
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        return ResponseEntity.status(response.getStatusCodeValue()).headers(headers).body(compressed);
+    }
+
+    // A strong ETag identifies the bytes of the identity representation, so the
+    // gzip representation gets its own ("abc" becomes "abc-gzip"). Weak ETags are
+    // kept, both representations being semantically equivalent.
+    private static String getGzipEtag(String etag) {
+        if (etag.startsWith(WEAK_ETAG_PREFIX) || !etag.endsWith(ETAG_QUOTE) || (etag.length() < 2)) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + ETAG_QUOTE;
+    }
+
+    // Handle the ResponseEntity return values (synchronous or completed
+    // asynchronously) through a decorator of their handler, which swaps the
+    // prepared responses for their compressed body. Being a byte[], it is written
+    // as is by the ByteArrayHttpMessageConverter.
+    @PostConstruct
+    private void init() {
+        List<HandlerMethodReturnValueHandler> handlers = new ArrayList<>();
+        for (HandlerMethodReturnValueHandler handler : handlerAdapter.getReturnValueHandlers()) {
+            handlers.add(handler instanceof HttpEntityMethodProcessor ? new CompressedBodyHandler(handler) : handler);
+        }
+        handlerAdapter.setReturnValueHandlers(handlers);
+    }
+
+}
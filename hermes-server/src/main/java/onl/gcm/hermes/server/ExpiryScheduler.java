@@ -0,0 +1,44 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+// Single thread shared by every ResponseEntityCache to expire their entries and
+// save their snapshots, whatever the number of caches. Tasks are kept in a queue
+// ordered by deadline, from which cancelled tasks are removed at once, so that
+// entries are removed one by one close to their deadline instead of by full
+// sweeps of the caches.
+public final class ExpiryScheduler {
+
+    private static final String THREAD_NAME_PREFIX = "hermes-cache-expiry-";
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private ExpiryScheduler() {
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return EXECUTOR.schedule(task, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period) {
+        return EXECUTOR.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Number of pending tasks, mostly entry expiries.
+    public static int getQueueSize() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(THREAD_NAME_PREFIX);
+        threadFactory.setDaemon(true);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+}
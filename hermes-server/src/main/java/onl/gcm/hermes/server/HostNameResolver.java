@@ -0,0 +1,187 @@
+package onl.gcm.hermes.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Reverse DNS cache of the callers' addresses. Lookups are done in the
+// background: until an address is resolved, the address itself is returned, so
+// that requests never wait for a DNS server. Addresses without host name are
+// cached for a shorter time (negative caching).
+@Component
+@PropertySource("classpath:servers.properties")
+public class HostNameResolver {
+
+    private static final String THREAD_NAME_PREFIX = "hermes-dns-";
+    private static final String METER_PREFIX = "hermes.dns.cache.";
+
+    private static final class CachedHostName {
+        private final String hostName;
+        private final long expiration;
+
+        private CachedHostName(String hostName, long expiration) {
+            this.hostName = hostName;
+            this.expiration = expiration;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${hermes.server.dns.cache.ttl}")
+    private long ttl;
+
+    @Value("${hermes.server.dns.cache.negative.ttl}")
+    private long negativeTtl;
+
+    @Value("${hermes.server.dns.cache.max.size}")
+    private int maxSize;
+
+    @Value("${hermes.server.dns.threads}")
+    private int threads;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentHashMap<String, CachedHostName> cache = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    private ThreadPoolExecutor executor;
+
+    // Get the host name of the address if known (even if expired, in which case it
+    // is resolved again in the background), else the address itself.
+    public String resolve(String address) {
+        CachedHostName cached = cache.get(address);
+        if (cached == null) {
+            missCount.increment();
+            resolveAsync(address);
+            return address;
+        }
+
+        hitCount.increment();
+        if (cached.expiration - System.nanoTime() < 0) {
+            resolveAsync(address);
+        }
+        return cached.hostName;
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    // Number of lookups that did not find any host name.
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    private void resolveAsync(String address) {
+        if (!pending.add(address)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    put(address, lookup(address));
+                } finally {
+                    pending.remove(address);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many pending lookups: retry on a later request.
+            pending.remove(address);
+        }
+    }
+
+    private String lookup(String address) {
+        try {
+            return InetAddress.getByName(address).getHostName();
+        } catch (UnknownHostException | SecurityException e) {
+            logger.debug("Could not resolve {}: {}", address, e.getMessage());
+            return address;
+        }
+    }
+
+    private void put(String address, String hostName) {
+        // Without PTR record, the host name is the textual address.
+        boolean resolved = !address.equals(hostName);
+        if (!resolved) {
+            failureCount.increment();
+        }
+        long expiration = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(resolved ? ttl : negativeTtl);
+        cache.put(address, new CachedHostName(hostName, expiration));
+        if (cache.size() > maxSize) {
+            shrink();
+        }
+    }
+
+    // Remove the expired entries, then arbitrary ones if still too large.
+    private void shrink() {
+        long now = System.nanoTime();
+        cache.values().removeIf(cached -> cached.expiration - now < 0);
+        Iterator<String> iterator = cache.keySet().iterator();
+        while ((cache.size() > maxSize) && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(THREAD_NAME_PREFIX);
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxSize), threadFactory);
+
+        Gauge.builder(METER_PREFIX + "size", this, HostNameResolver::getSize)
+                .description("Addresses in the reverse DNS cache")
+                .register(meterRegistry);
+        FunctionCounter.builder(METER_PREFIX + "hits", this, HostNameResolver::getHitCount)
+                .description("Addresses found in the reverse DNS cache")
+                .register(meterRegistry);
+        FunctionCounter.builder(METER_PREFIX + "misses", this, HostNameResolver::getMissCount)
+                .description("Addresses not found in the reverse DNS cache")
+                .register(meterRegistry);
+        FunctionCounter.builder(METER_PREFIX + "failures", this, HostNameResolver::getFailureCount)
+                .description("Reverse DNS lookups that did not find any host name")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+}
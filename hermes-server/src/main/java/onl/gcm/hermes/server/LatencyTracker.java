@@ -0,0 +1,59 @@
+package onl.gcm.hermes.server;
+
+import java.util.Arrays;
+
+// Latency percentiles of the last calls to an upstream server, from a ring
+// buffer of their durations. The percentiles are read from a sorted copy of the
+// buffer, sorted again only every few calls so that most calls just record their
+// duration.
+public class LatencyTracker {
+
+    // Times the sorted copy is refreshed while the window is filled once.
+    private static final int REFRESHES_PER_WINDOW = 10;
+
+    private final int minimumCalls;
+    private final int refreshInterval;
+
+    // Ring buffer of the durations (ns) of the last calls.
+    private final long[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int callsSinceRefresh;
+    // Sorted copy of the window, or null if it must be refreshed.
+    private long[] sorted;
+
+    public LatencyTracker(int windowSize, int minimumCalls) {
+        this.window = new long[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.refreshInterval = Math.max(1, windowSize / REFRESHES_PER_WINDOW);
+    }
+
+    // Duration in ns.
+    public synchronized void record(long duration) {
+        window[windowIndex] = duration;
+        windowIndex = (windowIndex + 1) % window.length;
+        if (windowCount < window.length) {
+            windowCount++;
+        }
+        if (++callsSinceRefresh >= refreshInterval) {
+            callsSinceRefresh = 0;
+            sorted = null;
+        }
+    }
+
+    // Duration (ns) within which the share (between 0 and 1) of the last calls
+    // completed, or -1 if there have been fewer than the minimum number of calls.
+    public synchronized long getPercentile(double share) {
+        if (windowCount < minimumCalls) {
+            return -1;
+        }
+
+        if (sorted == null) {
+            sorted = Arrays.copyOf(window, windowCount);
+            Arrays.sort(sorted);
+        }
+        int index = (int) Math.ceil(share * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+}
@@ -0,0 +1,49 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Deduplication of repeated log lines: a message is logged at most once per
+// interval for each key, the other occurrences being only counted.
+public class LogRateLimiter {
+
+    // Keys tracked at most, beyond which they are forgotten (and may be logged
+    // again) so that callers cannot grow the map without bound.
+    private static final int MAX_KEYS = 10000;
+
+    private final ConcurrentHashMap<Object, Long> lastLogged = new ConcurrentHashMap<>();
+    private final LongAdder suppressedCount = new LongAdder();
+    private final long interval;
+
+    // Interval in ms.
+    public LogRateLimiter(long interval) {
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    // Number of occurrences that were not logged.
+    public long getSuppressedCount() {
+        return suppressedCount.sum();
+    }
+
+    // Whether the message of the key should be logged, i.e. it has not been logged
+    // during the last interval. Only one of concurrent callers gets true.
+    public boolean tryAcquire(Object key) {
+        long now = System.nanoTime();
+        Long last = lastLogged.get(key);
+        boolean acquired;
+        if (last == null) {
+            if (lastLogged.size() >= MAX_KEYS) {
+                lastLogged.clear();
+            }
+            acquired = lastLogged.putIfAbsent(key, now) == null;
+        } else {
+            acquired = (now - last >= interval) && lastLogged.replace(key, last, now);
+        }
+        if (!acquired) {
+            suppressedCount.increment();
+        }
+        return acquired;
+    }
+
+}
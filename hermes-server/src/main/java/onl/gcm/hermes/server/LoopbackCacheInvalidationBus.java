@@ -0,0 +1,28 @@
+package onl.gcm.hermes.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// In-process bus, for a single node: invalidations are delivered synchronously
+// to the listeners of this JVM only.
+@Component
+@ConditionalOnProperty(name = "hermes.server.invalidation.bus", havingValue = "loopback", matchIfMissing = true)
+public class LoopbackCacheInvalidationBus implements CacheInvalidationBus {
+
+    private final List<Consumer<CacheInvalidation>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(CacheInvalidation invalidation) {
+        listeners.forEach(listener -> listener.accept(invalidation));
+    }
+
+    @Override
+    public void subscribe(Consumer<CacheInvalidation> listener) {
+        listeners.add(listener);
+    }
+
+}
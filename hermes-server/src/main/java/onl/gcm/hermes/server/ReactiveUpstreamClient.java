@@ -0,0 +1,166 @@
+package onl.gcm.hermes.server;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import io.netty.channel.ChannelOption;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+// Non-blocking counterpart of the RestTemplate of HermesClient: upstream calls
+// run on a few event loop threads and complete CompletableFutures, so that
+// in-flight calls do not hold any servlet thread. Errors are translated to the
+// RestClientExceptions thrown by RestTemplate, so that they are handled the
+// same way in both proxy modes.
+@Component
+@PropertySource("classpath:hermes.properties")
+@PropertySource("classpath:servers.properties")
+public class ReactiveUpstreamClient {
+
+    private static final String CONNECTION_PROVIDER_NAME = "hermes";
+    private static final String ERROR_MESSAGE_SEPARATOR = ": ";
+    private static final String NO_BODY = "[no body]";
+    private static final String QUOTE = "\"";
+
+    @Value("${http.request.connect.timeout}")
+    private int connectTimeout;
+
+    @Value("${http.request.read.timeout}")
+    private int readTimeout;
+
+    @Value("${http.request.pool.timeout}")
+    private int poolTimeout;
+
+    @Value("${http.request.compression}")
+    private boolean compression;
+
+    @Value("${http.pool.max.per.route}")
+    private int maxPerRoute;
+
+    @Value("${http.pool.idle.timeout}")
+    private long idleTimeout;
+
+    @Value("${hermes.server.reactive.max.in.memory.size}")
+    private int maxInMemorySize;
+
+    private ConnectionProvider connectionProvider;
+
+    private WebClient webClient;
+
+    public <T> CompletableFuture<ResponseEntity<T>> getForEntity(String url, Class<T> responseType,
+            Object... uriVariables) {
+        return toFuture(webClient.get().uri(url, uriVariables).retrieve().toEntity(responseType));
+    }
+
+    // GET with additional request headers, such as the validators of a conditional
+    // request.
+    public <T> CompletableFuture<ResponseEntity<T>> getForEntity(String url, HttpHeaders headers,
+            Class<T> responseType, Object... uriVariables) {
+        return toFuture(webClient.get().uri(url, uriVariables).headers(h -> h.addAll(headers)).retrieve()
+                .toEntity(responseType));
+    }
+
+    public <T> CompletableFuture<ResponseEntity<T>> postForEntity(String url, Object request, Class<T> responseType,
+            Object... uriVariables) {
+        WebClient.RequestBodySpec spec = webClient.post().uri(url, uriVariables);
+        if (request != null) {
+            spec.bodyValue(request);
+        }
+        return toFuture(spec.retrieve().toEntity(responseType));
+    }
+
+    public CompletableFuture<ResponseEntity<Void>> delete(String url, Object... uriVariables) {
+        return toFuture(webClient.delete().uri(url, uriVariables).retrieve().toBodilessEntity());
+    }
+
+    private static <T> CompletableFuture<ResponseEntity<T>> toFuture(Mono<ResponseEntity<T>> mono) {
+        return mono.onErrorMap(ReactiveUpstreamClient::toRestClientException).toFuture();
+    }
+
+    public static RestClientException toRestClientException(Throwable t) {
+        if (t instanceof RestClientException) {
+            return (RestClientException) t;
+        }
+        if (t instanceof WebClientResponseException) {
+            WebClientResponseException e = (WebClientResponseException) t;
+            int rawStatus = e.getRawStatusCode();
+            HttpStatus status = HttpStatus.resolve(rawStatus);
+            String statusText = e.getStatusText();
+            HttpHeaders headers = e.getHeaders();
+            byte[] body = e.getResponseBodyAsByteArray();
+            Charset charset = StandardCharsets.UTF_8;
+            String message = getErrorMessage(rawStatus, statusText, body, charset);
+            if (status == null) {
+                return new UnknownHttpStatusCodeException(message, rawStatus, statusText, headers, body, charset);
+            }
+            if (status.is4xxClientError()) {
+                return HttpClientErrorException.create(message, status, statusText, headers, body, charset);
+            }
+            return HttpServerErrorException.create(message, status, statusText, headers, body, charset);
+        }
+        Throwable cause = t.getCause();
+        if (cause instanceof IOException) {
+            return new ResourceAccessException(t.getMessage(), (IOException) cause);
+        }
+        return new RestClientException(t.getMessage(), t);
+    }
+
+    // Same message as the one built by the DefaultResponseErrorHandler of
+    // RestTemplate.
+    private static String getErrorMessage(int rawStatus, String statusText, byte[] body, Charset charset) {
+        String preface = rawStatus + " " + statusText + ERROR_MESSAGE_SEPARATOR;
+        if ((body == null) || (body.length == 0)) {
+            return preface + NO_BODY;
+        }
+        return preface + QUOTE + new String(body, charset) + QUOTE;
+    }
+
+    @PostConstruct
+    private void init() {
+        connectionProvider = ConnectionProvider.builder(CONNECTION_PROVIDER_NAME)
+                .maxConnections(maxPerRoute)
+                .pendingAcquireMaxCount(-1)
+                .pendingAcquireTimeout(Duration.ofMillis(poolTimeout))
+                .maxIdleTime(Duration.ofMillis(idleTimeout))
+                .evictInBackground(Duration.ofMillis(idleTimeout))
+                .build();
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                .compress(compression);
+        if (readTimeout > 0) {
+            httpClient = httpClient.responseTimeout(Duration.ofMillis(readTimeout));
+        }
+        webClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(maxInMemorySize))
+                .build();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        connectionProvider.dispose();
+    }
+
+}
@@ -0,0 +1,107 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Single-flight execution: concurrent calls sharing the same key wait for the
+// first one (the leader) and share its result or its exception, instead of all
+// reaching the upstream server.
+public class RequestCoalescer {
+
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder callCount = new LongAdder();
+    private final LongAdder collapsedCount = new LongAdder();
+
+    // Number of calls actually executed.
+    public long getCallCount() {
+        return callCount.sum();
+    }
+
+    // Number of calls that waited for the result of an in-flight call instead of
+    // being executed.
+    public long getCollapsedCount() {
+        return collapsedCount.sum();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Object key, Supplier<T> call) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, future);
+        if (leader != null) {
+            collapsedCount.increment();
+            // Type safety: Unchecked cast from Object to T.
+            return (T) join(leader);
+        }
+
+        callCount.increment();
+        try {
+            T result = call.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    // Asynchronous variant of execute: the leader starts the call, every caller gets
+    // a future completed with its result.
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(Object key, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, future);
+        if (leader != null) {
+            collapsedCount.increment();
+            // Type safety: Unchecked cast from CompletableFuture<Object> to
+            // CompletableFuture<T>.
+            return (CompletableFuture<T>) (CompletableFuture<?>) leader;
+        }
+
+        callCount.increment();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException | Error e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((value, t) -> {
+            inFlight.remove(key, future);
+            if (t == null) {
+                future.complete(value);
+            } else {
+                future.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+            }
+        });
+        // Type safety: Unchecked cast from CompletableFuture<Object> to
+        // CompletableFuture<T>.
+        return (CompletableFuture<T>) (CompletableFuture<?>) future;
+    }
+
+    private static Object join(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // Rethrow the exception of the leader as is, so that followers handle it
+            // exactly like the leader does.
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+}
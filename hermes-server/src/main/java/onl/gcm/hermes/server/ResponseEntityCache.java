@@ -1,45 +1,230 @@
 package onl.gcm.hermes.server;
 
-import java.text.MessageFormat;
-import java.util.Date;
-import java.util.Iterator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.ClassUtils;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.NoArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 
 public class ResponseEntityCache {
 
-    @Data
-    @NoArgsConstructor
-    @AllArgsConstructor
+    // Immutable, with its hash computed once. URL templates are interned, so that
+    // the keys of a route share the same string.
+    @Getter
+    @ToString(exclude = "hash")
     @SuppressWarnings("rawtypes")
-    public class CacheKey {
-        private String url;
+    public static final class CacheKey {
+        private final String url;
         // Class is a raw type. References to generic type Class<T> should be
         // parameterized.
-        Class responseType;
+        private final Class responseType;
+        private final Object[] uriVariables;
+        private final int hash;
+
+        public CacheKey(String url, Class responseType, Object... uriVariables) {
+            this.url = url.intern();
+            this.responseType = responseType;
+            this.uriVariables = uriVariables.clone();
+            this.hash = hash(url, responseType, uriVariables);
+        }
+
+        private static int hash(String url, Class<?> responseType, Object[] uriVariables) {
+            return 31 * (31 * url.hashCode() + responseType.hashCode()) + Arrays.deepHashCode(uriVariables);
+        }
+
+        private boolean matches(int hash, String url, Class<?> responseType, Object[] uriVariables) {
+            return (this.hash == hash) && (this.responseType == responseType) && this.url.equals(url)
+                    && Arrays.deepEquals(this.uriVariables, uriVariables);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (this == o)
+                    || ((o instanceof CacheKey) && ((CacheKey) o).matches(hash, url, responseType, uriVariables));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Reusable probe looking up the value of a key without creating a CacheKey: it
+    // has the same hash and equals the CacheKey of the same URL, response type and
+    // URI variables. Only meant to be passed to the get method of the cache map.
+    private static final class LookupKey {
+        private String url;
+        private Class<?> responseType;
         private Object[] uriVariables;
+        private int hash;
+
+        private LookupKey set(String url, Class<?> responseType, Object[] uriVariables) {
+            this.url = url;
+            this.responseType = responseType;
+            this.uriVariables = uriVariables;
+            this.hash = CacheKey.hash(url, responseType, uriVariables);
+            return this;
+        }
+
+        // Do not keep the URI variables of the last lookup alive.
+        private void clear() {
+            url = null;
+            responseType = null;
+            uriVariables = null;
+        }
+
+        @Override
+        @SuppressWarnings("java:S2162")
+        public boolean equals(Object o) {
+            // "equals" methods should be symmetric and work for subclasses.
+            return (o instanceof CacheKey) && ((CacheKey) o).matches(hash, url, responseType, uriVariables);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
-    @Data
-    @NoArgsConstructor
+    // No equals/hashCode: values are compared by identity, so that an entry is
+    // only removed if it has not been replaced in the meantime.
+    @Getter
+    @Setter
     @AllArgsConstructor
     @SuppressWarnings("rawtypes")
     public class CacheValue {
+        private final CacheKey key;
+        // Tags of the URL of the key when the value was cached.
+        private final Set<String> tags;
+        // Validators of the response (ETag and Last-Modified headers), sent back to
+        // the upstream server to revalidate the value once expired, or null.
+        private final String etag;
+        private final String lastModified;
         private long timestamp;
         // Class is a raw type. References to generic type Class<T> should be
         // parameterized.
         private ResponseEntity response;
+        // Encoded response kept in a direct buffer instead of response when the
+        // cache is off-heap.
+        private final ByteBuffer serialized;
+        // Estimated size of the response in bytes, its compressed body included once
+        // set.
+        @Setter(AccessLevel.NONE)
+        private volatile long weight;
+        // Set on each hit and cleared by the eviction clock hand, giving recently
+        // used entries a second chance before being evicted.
+        private volatile boolean referenced;
+        // Approximate number of hits, only counted when refresh-ahead is enabled.
+        private int hits;
+        // Removal of the value at the end of its hard lifetime, cancelled if it is
+        // removed before.
+        private volatile ScheduledFuture<?> expiry;
+        // Gzip-compressed JSON body, computed on the first hit of a caller accepting
+        // gzip (empty if not worth compressing), and served as is to the next ones.
+        // Kept in a direct buffer when the cache is off-heap, see setCompressedBody.
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private volatile ByteBuffer compressedBody;
+
+        // Off-heap responses are decoded on each call, so that callers never share
+        // a body.
+        @SuppressWarnings("unchecked")
+        public ResponseEntity getResponse() {
+            // Type safety: The expression of type Class needs unchecked conversion to
+            // conform to Class<T>.
+            return serialized == null ? response : ResponseEntityCodec.decode(serialized, key.getResponseType());
+        }
+
+        public boolean hasValidators() {
+            return (etag != null) || (lastModified != null);
+        }
+
+        // Compressed body, copied to the heap if kept off-heap, or null if not set.
+        public byte[] getCompressedBody() {
+            ByteBuffer body = compressedBody;
+            if (body == null) {
+                return null;
+            }
+            if (body.hasArray()) {
+                return body.array();
+            }
+            byte[] bytes = new byte[body.remaining()];
+            body.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    public enum Freshness {
+        // Younger than the lifetime.
+        FRESH,
+        // Fresh, but hot and about to expire: it should be refreshed in the background.
+        REFRESH_AHEAD,
+        // Older than the lifetime but still within the stale lifetime: it can be served
+        // while being refreshed in the background.
+        STALE,
+        // Older than the stale lifetime but still within the stale-if-error lifetime:
+        // it can only be served if the upstream server fails.
+        EXPIRED;
+
+        public boolean isFresh() {
+            return (this == FRESH) || (this == REFRESH_AHEAD);
+        }
+    }
+
+    // Output stream counting the bytes written to it, and discarding them.
+    private static final class ByteCounter extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
     }
 
     public static final long INFINITE_LIFETIME = -1;
@@ -51,27 +236,81 @@ public class ResponseEntityCache {
     public static final long THIRTY_MINUTES_LIFETIME = 30 * ONE_MINUTE_LIFETIME;
     public static final long ONE_HOUR_LIFETIME = 60 * ONE_MINUTE_LIFETIME;
     public static final long DEFAULT_LIFETIME = ONE_HOUR_LIFETIME;
-    public static final long DEFAULT_PRUNE_DELAY = ONE_HOUR_LIFETIME;
+    public static final long UNLIMITED = -1;
 
-    private static final String BEGIN_CACHE_PRUNE_PATTERN = "Starting {0} cache prune...";
-    private static final String END_CACHE_PRUNE_PATTERN = "Removed {0} item(s) from cache {1}.";
+    // Fixed cost of an entry (key, value, map node...) added to the estimated size
+    // of its response.
+    private static final long ENTRY_OVERHEAD = 256;
+    // Heap footprint of a deserialized body compared to its JSON representation
+    // (UTF-16 strings, object headers...).
+    private static final long JSON_HEAP_RATIO = 2;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ThreadLocal<LookupKey> LOOKUP_KEY = ThreadLocal.withInitial(LookupKey::new);
+    // Number of removed values tolerated in the eviction clock before compacting it.
+    private static final int CLOCK_COMPACTION_SLACK = 1024;
+    // Snapshot file format: magic number, version and wall clock time of the save,
+    // then a sequence of entries each preceded by ENTRY_MARK, then END_MARK.
+    private static final int SNAPSHOT_MAGIC = 0x48524D53;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final byte ENTRY_MARK = 1;
+    private static final byte END_MARK = 0;
+
+    private static final String SNAPSHOT_LOADED_PATTERN = "Loaded {} item(s) into cache {} from {}.";
+    private static final String SNAPSHOT_SAVED_PATTERN = "Saved {} item(s) of cache {} to {}.";
+    private static final String SNAPSHOT_ERROR_PATTERN = "Cannot {} snapshot {} of cache {}: {}";
+    private static final String SNAPSHOT_ENTRY_ERROR_PATTERN = "Skipping {} in snapshot {} of cache {}: {}";
+    private static final String ENCODING_ERROR_PATTERN = "Cannot store {} off-heap in cache {}: {}";
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final ConcurrentHashMap<CacheKey, CacheValue> cache = new ConcurrentHashMap<>();
+    // Secondary indexes of the keys, so that invalidations only visit the entries
+    // they remove. They may contain keys that have just been removed, which are
+    // skipped.
+    private final ConcurrentHashMap<Class<?>, Set<CacheKey>> responseTypeIndex = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<CacheKey>> urlIndex = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<CacheKey>> tagIndex = new ConcurrentHashMap<>();
+    // Tags of the entries of each URL (template).
+    private final ConcurrentHashMap<String, Set<String>> urlTags = new ConcurrentHashMap<>();
+    // Insertion ordered values scanned by the eviction clock hand. It may contain
+    // values that have been removed or replaced, which are skipped and regularly
+    // compacted.
+    private final ArrayDeque<CacheValue> clock = new ArrayDeque<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder putCount = new LongAdder();
+    private final LongAdder revalidationCount = new LongAdder();
+    // Responses not cached for being heavier than the whole cache.
+    private final LongAdder rejectionCount = new LongAdder();
+    // Number and total duration (ns) of the expiry tasks and eviction passes.
+    private final LongAdder expiryRunCount = new LongAdder();
+    private final LongAdder expiryTime = new LongAdder();
+    private final LongAdder evictionRunCount = new LongAdder();
+    private final LongAdder evictionTime = new LongAdder();
     private final String name;
     private long lifetime;
-    private long pruneDelay;
-    private Timer pruneTimer;
+    private long staleLifetime = ZERO_LIFETIME;
+    private long staleIfErrorLifetime = ZERO_LIFETIME;
+    private long revalidationLifetime = ZERO_LIFETIME;
+    private long refreshAhead = ZERO_LIFETIME;
+    private int refreshAheadHits;
+    private long maxEntries = UNLIMITED;
+    private long maxWeight = UNLIMITED;
+    private boolean offHeap;
+    private Path snapshotFile;
+    private ScheduledFuture<?> snapshotTask;
+    private TimeSource timeSource = TimeSource.SYSTEM;
 
     public ResponseEntityCache(String name) {
-        this(name, DEFAULT_LIFETIME, DEFAULT_PRUNE_DELAY);
+        this(name, DEFAULT_LIFETIME);
     }
 
-    public ResponseEntityCache(String name, long lifetime, long pruneDelay) {
+    public ResponseEntityCache(String name, long lifetime) {
         this.name = name;
         this.lifetime = lifetime;
-        this.pruneDelay = pruneDelay;
-        startAutomaticPrune();
     }
 
     public long getLifetime() {
@@ -80,98 +319,751 @@ public class ResponseEntityCache {
 
     public void setLifetime(long lifetime) {
         this.lifetime = lifetime;
+        rescheduleExpiries();
+    }
+
+    public long getStaleLifetime() {
+        return staleLifetime;
     }
 
-    public long getPruneDelay() {
-        return pruneDelay;
+    // Extra time during which expired entries are still served while being
+    // refreshed in the background (stale-while-revalidate).
+    public void setStaleLifetime(long staleLifetime) {
+        this.staleLifetime = staleLifetime;
+        rescheduleExpiries();
     }
 
-    public void setPruneDelay(long pruneDelay) {
-        this.pruneDelay = pruneDelay;
-        startAutomaticPrune();
+    public long getStaleIfErrorLifetime() {
+        return staleIfErrorLifetime;
     }
 
+    // Extra time during which expired entries are kept to be served when the
+    // upstream server fails (stale-if-error).
+    public void setStaleIfErrorLifetime(long staleIfErrorLifetime) {
+        this.staleIfErrorLifetime = staleIfErrorLifetime;
+        rescheduleExpiries();
+    }
+
+    public long getRevalidationLifetime() {
+        return revalidationLifetime;
+    }
+
+    // Extra time during which expired entries having validators are kept to be
+    // revalidated with a conditional request, whose 304 response reuses them.
+    public void setRevalidationLifetime(long revalidationLifetime) {
+        this.revalidationLifetime = revalidationLifetime;
+        rescheduleExpiries();
+    }
+
+    public long getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    // Time before expiry from which hot entries are refreshed in the background,
+    // ZERO_LIFETIME to disable refresh-ahead.
+    public void setRefreshAhead(long refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    public int getRefreshAheadHits() {
+        return refreshAheadHits;
+    }
+
+    // Minimum number of hits for an entry to be refreshed ahead of its expiry.
+    public void setRefreshAheadHits(int refreshAheadHits) {
+        this.refreshAheadHits = refreshAheadHits;
+    }
+
+    // Age after which entries are removed, whatever their use, unless they can be
+    // revalidated.
+    public long getHardLifetime() {
+        return lifetime == INFINITE_LIFETIME ? INFINITE_LIFETIME
+                : lifetime + Math.max(staleLifetime, staleIfErrorLifetime);
+    }
+
+    private long getHardLifetime(boolean revalidatable) {
+        long hardLifetime = getHardLifetime();
+        return (hardLifetime == INFINITE_LIFETIME) || !revalidatable ? hardLifetime
+                : Math.max(hardLifetime, lifetime + revalidationLifetime);
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(long maxEntries) {
+        this.maxEntries = maxEntries;
+        evict();
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    public Set<String> getTags(String url) {
+        return urlTags.getOrDefault(url, Collections.emptySet());
+    }
+
+    // Tag the entries of the URL (template) from now on, so that they can be
+    // removed together with removeCacheByTag.
+    public void setTags(String url, String... tags) {
+        urlTags.put(url, Collections.unmodifiableSet(new HashSet<>(Arrays.asList(tags))));
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    // Store the new responses encoded in direct buffers, out of the heap and of the
+    // reach of the garbage collector, and bound the direct memory used by the cache
+    // with the max weight. Entries already cached are left as they are.
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Source of the timestamps and ages of the entries, and of the wall clock time
+    // of the snapshots. Set before the cache is filled.
+    public void setTimeSource(TimeSource timeSource) {
+        this.timeSource = timeSource;
+    }
+
+    // Copy the lifetimes, size limits, storage and tags of the other cache, before
+    // this one is filled.
+    public void copySettings(ResponseEntityCache other) {
+        lifetime = other.lifetime;
+        staleLifetime = other.staleLifetime;
+        staleIfErrorLifetime = other.staleIfErrorLifetime;
+        revalidationLifetime = other.revalidationLifetime;
+        refreshAhead = other.refreshAhead;
+        refreshAheadHits = other.refreshAheadHits;
+        maxEntries = other.maxEntries;
+        maxWeight = other.maxWeight;
+        offHeap = other.offHeap;
+        urlTags.putAll(other.urlTags);
+        rescheduleExpiries();
+        evict();
+    }
+
+    // Live view of the values, for inspection.
+    public Collection<CacheValue> getValues() {
+        return Collections.unmodifiableCollection(cache.values());
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirationCount.sum();
+    }
+
+    public long getPutCount() {
+        return putCount.sum();
+    }
+
+    public long getRevalidationCount() {
+        return revalidationCount.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejectionCount.sum();
+    }
+
+    public long getExpiryRunCount() {
+        return expiryRunCount.sum();
+    }
+
+    // Total duration of the expiry tasks, in ns.
+    public long getExpiryTime() {
+        return expiryTime.sum();
+    }
+
+    public long getEvictionRunCount() {
+        return evictionRunCount.sum();
+    }
+
+    // Total duration of the eviction passes, in ns.
+    public long getEvictionTime() {
+        return evictionTime.sum();
+    }
+
+    // Get the fresh response, or null.
     @SuppressWarnings("unchecked")
     public <T> ResponseEntity<T> getCache(String url, Class<T> responseType, Object... uriVariables) {
-        CacheKey key = new CacheKey(url, responseType, uriVariables);
-        CacheValue value = cache.get(key);
-        ResponseEntity<T> response = null;
+        CacheValue value = getCacheValue(url, responseType, uriVariables);
+        // Type safety: The expression of type ResponseEntity needs unchecked conversion
+        // to conform to ResponseEntity<T>.
+        return (value == null) || !getFreshness(value).isFresh() ? null : value.getResponse();
+    }
+
+    // Get the value, or null if there is none or if it is older than the hard
+    // lifetime. Use getFreshness to know whether it can be served and whether it
+    // should be refreshed.
+    public CacheValue getCacheValue(String url, Class<?> responseType, Object... uriVariables) {
+        LookupKey lookupKey = LOOKUP_KEY.get().set(url, responseType, uriVariables);
+        CacheValue value;
+        try {
+            value = cache.get(lookupKey);
+        } finally {
+            lookupKey.clear();
+        }
         if (value != null) {
-            long age = getTimestamp() - value.getTimestamp();
-            if ((lifetime != INFINITE_LIFETIME) && (age > lifetime)) {
-                cache.remove(key);
-                response = null;
+            long hardLifetime = getHardLifetime(value.hasValidators());
+            if ((hardLifetime != INFINITE_LIFETIME) && (getAge(value) > hardLifetime)) {
+                removeEntry(value);
+                value = null;
             } else {
-                // Type safety: The expression of type ResponseEntity needs unchecked conversion
-                // to conform to ResponseEntity<T>.
-                response = value.getResponse();
+                if (!value.isReferenced()) {
+                    value.setReferenced(true);
+                }
+                if (refreshAhead != ZERO_LIFETIME) {
+                    // Racy increment: an approximate count is enough to detect hot entries.
+                    value.setHits(value.getHits() + 1);
+                }
             }
         }
-        return response;
+        if ((value == null) || (getFreshness(value) == Freshness.EXPIRED)) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    public Freshness getFreshness(CacheValue value) {
+        if (lifetime == INFINITE_LIFETIME) {
+            return Freshness.FRESH;
+        }
+        long age = getAge(value);
+        if (age > lifetime + staleLifetime) {
+            return Freshness.EXPIRED;
+        }
+        if (age > lifetime) {
+            return Freshness.STALE;
+        }
+        if ((refreshAhead != ZERO_LIFETIME) && (age > lifetime - refreshAhead)
+                && (value.getHits() >= refreshAheadHits)) {
+            return Freshness.REFRESH_AHEAD;
+        }
+        return Freshness.FRESH;
+    }
+
+    // Whether the expired value can still be served when the upstream server fails
+    // (stale-if-error), as opposed to only being revalidated.
+    public boolean isServableOnError(CacheValue value) {
+        long hardLifetime = getHardLifetime();
+        return (hardLifetime == INFINITE_LIFETIME) || (getAge(value) <= hardLifetime);
     }
 
     public <T> void putCache(String url, Class<T> responseType, ResponseEntity<T> response, Object... uriVariables) {
         CacheKey key = new CacheKey(url, responseType, uriVariables);
-        CacheValue value = new CacheValue(getTimestamp(), response);
-        cache.put(key, value);
+        CacheValue value = offHeap ? createOffHeapValue(key, response) : null;
+        if (value == null) {
+            HttpHeaders headers = response.getHeaders();
+            value = new CacheValue(key, getTags(url), headers.getETag(), headers.getFirst(HttpHeaders.LAST_MODIFIED),
+                    getTimestamp(), response, null, estimateWeight(response), false, 0, null, null);
+        }
+        putValue(value);
+    }
+
+    // The upstream server answered 304 Not Modified to the conditional request
+    // built from the validators of the value: make it fresh again, reusing its
+    // response as is. Return false if it has been removed or replaced meanwhile.
+    public boolean revalidate(CacheValue value) {
+        if (cache.get(value.getKey()) != value) {
+            return false;
+        }
+
+        revalidationCount.increment();
+        putValue(new CacheValue(value.getKey(), value.getTags(), value.getEtag(), value.getLastModified(),
+                getTimestamp(), value.response, value.getSerialized(), value.getWeight(), false, 0, null,
+                value.compressedBody));
+        return true;
+    }
+
+    // Keep the compressed body of the value, counted in its weight, if the value is
+    // still cached and has none yet.
+    public void setCompressedBody(CacheValue value, byte[] compressedBody) {
+        ByteBuffer body = offHeap ? ResponseEntityCodec.toDirect(compressedBody) : ByteBuffer.wrap(compressedBody);
+        evictionLock.lock();
+        try {
+            // Updated within compute, so that a concurrent removal of the value
+            // subtracts its weight either before or after the update.
+            cache.computeIfPresent(value.getKey(), (key, current) -> {
+                if ((current == value) && (value.compressedBody == null)) {
+                    value.compressedBody = body;
+                    value.weight += body.remaining();
+                    weight.addAndGet(body.remaining());
+                }
+                return current;
+            });
+        } finally {
+            evictionLock.unlock();
+        }
+        evict();
     }
 
+    private void putValue(CacheValue value) {
+        if ((maxWeight != UNLIMITED) && (value.getWeight() > maxWeight)) {
+            // Admitting this response would flush the whole cache. The previous value
+            // of the key is removed all the same, being older than the response.
+            CacheValue previous = cache.get(value.getKey());
+            if (previous != null) {
+                removeEntry(previous);
+            }
+            rejectionCount.increment();
+            return;
+        }
+
+        evictionLock.lock();
+        try {
+            CacheValue previous = cache.put(value.getKey(), value);
+            if (previous != null) {
+                weight.addAndGet(-previous.getWeight());
+                cancelExpiry(previous);
+            }
+            weight.addAndGet(value.getWeight());
+            putCount.increment();
+            index(value);
+            clock.addLast(value);
+            compactClock();
+        } finally {
+            evictionLock.unlock();
+        }
+        scheduleExpiry(value);
+        evict();
+    }
+
+    // Remove the entries of the response type matching the predicate. Only the
+    // entries of the response type are tested.
     @SuppressWarnings("unchecked")
     public <T> void removeCache(Class<T> responseType, Predicate<ResponseEntity<T>> predicate) {
-        Iterator<Entry<CacheKey, CacheValue>> iterator = cache.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Entry<CacheKey, CacheValue> entry = iterator.next();
+        for (CacheKey key : getIndexed(responseTypeIndex, responseType)) {
+            CacheValue value = cache.get(key);
             // Type safety: The expression of type ResponseEntity needs unchecked conversion
             // to conform to ResponseEntity<T>.
-            if (entry.getValue().getResponse().getBody().getClass().equals(responseType)
-                    && predicate.test(entry.getValue().getResponse())) {
-                iterator.remove();
+            if ((value != null) && predicate.test(value.getResponse())) {
+                removeEntry(value);
+            }
+        }
+    }
+
+    public void removeCache(String url, Class<?> responseType, Object... uriVariables) {
+        CacheValue value = cache.get(new CacheKey(url, responseType, uriVariables));
+        if (value != null) {
+            removeEntry(value);
+        }
+    }
+
+    // Remove every entry of the response type.
+    public void removeCache(Class<?> responseType) {
+        removeKeys(getIndexed(responseTypeIndex, responseType));
+    }
+
+    // Remove every entry of the URL (template), whatever its URI variables.
+    public void removeCacheByUrl(String url) {
+        removeKeys(getIndexed(urlIndex, url));
+    }
+
+    // Remove every entry whose URL (template) starts with the prefix. Only the
+    // distinct URLs are scanned, not the entries.
+    public void removeCacheByUrlPrefix(String prefix) {
+        for (String url : urlIndex.keySet()) {
+            if (url.startsWith(prefix)) {
+                removeCacheByUrl(url);
             }
         }
     }
 
+    public void removeCacheByTag(String tag) {
+        removeKeys(getIndexed(tagIndex, tag));
+    }
+
     public void clearCache() {
-        cache.clear();
+        cache.values().forEach(this::removeEntry);
     }
 
-    private long getTimestamp() {
-        return new Date().getTime();
+    // Remove the entry only if it has not been replaced since value was read.
+    private boolean removeEntry(CacheValue value) {
+        boolean removed = cache.remove(value.getKey(), value);
+        if (removed) {
+            weight.addAndGet(-value.getWeight());
+            cancelExpiry(value);
+            unindex(value);
+            CacheValue current = cache.get(value.getKey());
+            if (current != null) {
+                // Cached again concurrently, possibly indexed before being unindexed.
+                index(current);
+            }
+        }
+        return removed;
+    }
+
+    private void removeKeys(Set<CacheKey> keys) {
+        for (CacheKey key : keys) {
+            CacheValue value = cache.get(key);
+            if (value != null) {
+                removeEntry(value);
+            }
+        }
     }
 
-    private void startAutomaticPrune() {
-        if (pruneTimer != null) {
-            pruneTimer.cancel();
+    private void scheduleExpiry(CacheValue value) {
+        long hardLifetime = getHardLifetime(value.hasValidators());
+        if (hardLifetime != INFINITE_LIFETIME) {
+            value.setExpiry(ExpiryScheduler.schedule(() -> expire(value), hardLifetime - getAge(value)));
         }
-        TimerTask task = new TimerTask() {
-            @Override
-            public void run() {
-                pruneCache();
+    }
+
+    private void cancelExpiry(CacheValue value) {
+        ScheduledFuture<?> expiry = value.getExpiry();
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+    }
+
+    private void expire(CacheValue value) {
+        if (cache.get(value.getKey()) != value) {
+            return;
+        }
+        long start = System.nanoTime();
+        long hardLifetime = getHardLifetime(value.hasValidators());
+        if ((hardLifetime != INFINITE_LIFETIME) && (getAge(value) > hardLifetime)) {
+            if (removeEntry(value)) {
+                expirationCount.increment();
             }
-        };
-        pruneTimer = new Timer();
-        pruneTimer.scheduleAtFixedRate(task, pruneDelay, pruneDelay);
+        } else {
+            // The lifetimes have been extended meanwhile.
+            scheduleExpiry(value);
+        }
+        expiryRunCount.increment();
+        expiryTime.add(System.nanoTime() - start);
     }
 
-    @SuppressWarnings("java:S2629")
-    private void pruneCache() {
-        if (lifetime == INFINITE_LIFETIME) {
+    // The lifetimes changed: move the deadlines of the entries. Lifetimes are
+    // normally only set before the cache is filled.
+    private void rescheduleExpiries() {
+        for (CacheValue value : cache.values()) {
+            cancelExpiry(value);
+            scheduleExpiry(value);
+        }
+    }
+
+    private void index(CacheValue value) {
+        CacheKey key = value.getKey();
+        addToIndex(responseTypeIndex, key.getResponseType(), key);
+        addToIndex(urlIndex, key.getUrl(), key);
+        for (String tag : value.getTags()) {
+            addToIndex(tagIndex, tag, key);
+        }
+    }
+
+    private void unindex(CacheValue value) {
+        CacheKey key = value.getKey();
+        removeFromIndex(responseTypeIndex, key.getResponseType(), key);
+        removeFromIndex(urlIndex, key.getUrl(), key);
+        for (String tag : value.getTags()) {
+            removeFromIndex(tagIndex, tag, key);
+        }
+    }
+
+    // The sets are updated within compute, so that a set is never dropped while a
+    // key is being added to it.
+    private static <K> void addToIndex(ConcurrentHashMap<K, Set<CacheKey>> index, K indexKey, CacheKey key) {
+        index.compute(indexKey, (k, keys) -> {
+            Set<CacheKey> set = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+            set.add(key);
+            return set;
+        });
+    }
+
+    private static <K> void removeFromIndex(ConcurrentHashMap<K, Set<CacheKey>> index, K indexKey,
+            CacheKey key) {
+        index.computeIfPresent(indexKey, (k, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    // Copy of the indexed keys, which can be removed while being iterated.
+    private static <K> Set<CacheKey> getIndexed(ConcurrentHashMap<K, Set<CacheKey>> index, K indexKey) {
+        Set<CacheKey> keys = index.get(indexKey);
+        return keys == null ? Collections.emptySet() : new HashSet<>(keys);
+    }
+
+    // CLOCK eviction (second chance): the oldest entry is evicted unless it has
+    // been hit since the hand last passed, in which case it is moved to the tail.
+    // Hot entries are kept while cold ones are evicted in O(1) amortized time.
+    private void evict() {
+        if (!isOverCapacity()) {
             return;
         }
 
-        // "Preconditions" and logging arguments should not require evaluation.
-        logger.info(MessageFormat.format(BEGIN_CACHE_PRUNE_PATTERN, name));
+        long start = System.nanoTime();
+        evictionLock.lock();
+        try {
+            while (isOverCapacity() && !clock.isEmpty()) {
+                CacheValue value = clock.pollFirst();
+                if (cache.get(value.getKey()) != value) {
+                    // Removed or replaced entry.
+                    continue;
+                }
+                if (value.isReferenced()) {
+                    value.setReferenced(false);
+                    clock.addLast(value);
+                } else if (removeEntry(value)) {
+                    evictionCount.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+            evictionRunCount.increment();
+            evictionTime.add(System.nanoTime() - start);
+        }
+    }
+
+    private boolean isOverCapacity() {
+        return ((maxEntries != UNLIMITED) && (cache.size() > maxEntries))
+                || ((maxWeight != UNLIMITED) && (weight.get() > maxWeight));
+    }
+
+    // Drop removed and replaced values from the clock once they outnumber the live
+    // ones, so that it never grows beyond twice the size of the cache.
+    private void compactClock() {
+        if (clock.size() > 2 * cache.size() + CLOCK_COMPACTION_SLACK) {
+            clock.removeIf(value -> cache.get(value.getKey()) != value);
+        }
+    }
+
+    // Create a value holding the encoded response, or return null if it cannot be
+    // encoded and must be kept on the heap.
+    private CacheValue createOffHeapValue(CacheKey key, ResponseEntity<?> response) {
+        try {
+            ByteBuffer serialized = ResponseEntityCodec.encodeDirect(response);
+            HttpHeaders headers = response.getHeaders();
+            return new CacheValue(key, getTags(key.getUrl()), headers.getETag(),
+                    headers.getFirst(HttpHeaders.LAST_MODIFIED), getTimestamp(), null, serialized,
+                    ENTRY_OVERHEAD + serialized.remaining(), false, 0, null, null);
+        } catch (IOException e) {
+            logger.warn(ENCODING_ERROR_PATTERN, key.getUrl(), name, e.getMessage());
+            return null;
+        }
+    }
+
+    // Only used for the responses that are not encoded: the off-heap values and
+    // the snapshot entries are weighed from their encoded form, and the revalidated
+    // values keep their weight.
+    private static long estimateWeight(ResponseEntity<?> response) {
+        long size = ENTRY_OVERHEAD;
+        for (Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+            size += header.getKey().length();
+            for (String value : header.getValue()) {
+                size += value.length();
+            }
+        }
+        Object body = response.getBody();
+        if (body instanceof byte[]) {
+            size += ((byte[]) body).length;
+        } else if (body instanceof CharSequence) {
+            size += 2L * ((CharSequence) body).length();
+        } else if (body != null) {
+            // The JSON is only counted, not kept.
+            ByteCounter counter = new ByteCounter();
+            try {
+                OBJECT_MAPPER.writeValue(counter, body);
+                size += JSON_HEAP_RATIO * counter.count;
+            } catch (IOException e) {
+                // Keep the fixed overhead only.
+            }
+        }
+        return size;
+    }
+
+    // Monotonic clock in ms, immune to wall clock changes. Timestamps are only
+    // compared with each other, and saved as ages in snapshots.
+    private long getTimestamp() {
+        return TimeUnit.NANOSECONDS.toMillis(timeSource.nanoTime());
+    }
+
+    public long getAge(CacheValue value) {
+        return getTimestamp() - value.getTimestamp();
+    }
+
+    // Load the snapshot file, if any, then save the cache to it every delay ms so
+    // that a restarted server starts with a warm cache.
+    public void setSnapshot(Path file, long delay) {
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+        }
+        snapshotFile = file;
+        loadSnapshot();
+        snapshotTask = ExpiryScheduler.scheduleAtFixedRate(this::saveSnapshot, delay);
+    }
+
+    // Write the entries, with their age, to a temporary file moved over the
+    // snapshot file once complete, so that a crash never leaves a truncated
+    // snapshot behind. Entries whose URI variables or response cannot be encoded
+    // are skipped.
+    public synchronized void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
         int count = 0;
-        Iterator<Entry<CacheKey, CacheValue>> iterator = cache.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Entry<CacheKey, CacheValue> entry = iterator.next();
-            long age = getTimestamp() - entry.getValue().getTimestamp();
-            if (age > lifetime) {
-                iterator.remove();
-                count++;
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(timeSource.currentTimeMillis());
+                for (CacheValue value : cache.values()) {
+                    if (writeSnapshotEntry(out, value)) {
+                        count++;
+                    }
+                }
+                out.writeByte(END_MARK);
+            }
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logger.info(SNAPSHOT_SAVED_PATTERN, count, name, snapshotFile);
+        } catch (IOException e) {
+            logger.warn(SNAPSHOT_ERROR_PATTERN, "save", snapshotFile, name, e.getMessage());
+        }
+    }
+
+    private boolean writeSnapshotEntry(DataOutputStream out, CacheValue value) throws IOException {
+        CacheKey key = value.getKey();
+        if (!ResponseEntityCodec.isEncodable(key.getUriVariables())) {
+            return false;
+        }
+        byte[] response;
+        if (value.getSerialized() != null) {
+            response = new byte[value.getSerialized().remaining()];
+            value.getSerialized().duplicate().get(response);
+        } else {
+            try {
+                response = ResponseEntityCodec.encode(value.getResponse());
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        out.writeByte(ENTRY_MARK);
+        out.writeUTF(key.getUrl());
+        out.writeUTF(key.getResponseType().getName());
+        ResponseEntityCodec.writeUriVariables(out, key.getUriVariables());
+        // The age rather than the timestamp, which only makes sense within this run.
+        out.writeLong(getAge(value));
+        out.writeInt(response.length);
+        out.write(response);
+        return true;
+    }
+
+    // The snapshot file is memory-mapped and read sequentially. The time elapsed
+    // since the save (while the server was down) is added to the saved ages, and
+    // entries then older than the hard lifetime, or whose response type no longer
+    // exists or cannot be decoded, are skipped. Loading is best effort: a corrupt
+    // file only stops the loading, with the entries read until then.
+    private void loadSnapshot() {
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            InputStream input = size <= Integer.MAX_VALUE
+                    ? new ByteBufferBackedInputStream(channel.map(MapMode.READ_ONLY, 0, size))
+                    : new BufferedInputStream(Channels.newInputStream(channel));
+            DataInputStream in = new DataInputStream(input);
+            if ((in.readInt() != SNAPSHOT_MAGIC) || (in.readInt() != SNAPSHOT_VERSION)) {
+                throw new IOException("unknown format");
+            }
+            // A wall clock set back since the save counts as no time elapsed.
+            long elapsed = Math.max(0, timeSource.currentTimeMillis() - in.readLong());
+            while (in.readByte() == ENTRY_MARK) {
+                if (readSnapshotEntry(in, elapsed)) {
+                    count++;
+                }
+            }
+            logger.info(SNAPSHOT_LOADED_PATTERN, count, name, snapshotFile);
+        } catch (NoSuchFileException e) {
+            // Nothing saved yet.
+        } catch (IOException | RuntimeException e) {
+            logger.warn(SNAPSHOT_ERROR_PATTERN, "load", snapshotFile, name, e.toString());
+        }
+    }
+
+    private boolean readSnapshotEntry(DataInputStream in, long elapsed) throws IOException {
+        String url = in.readUTF();
+        String responseTypeName = in.readUTF();
+        Object[] uriVariables = ResponseEntityCodec.readUriVariables(in);
+        long age = in.readLong() + elapsed;
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid response length: " + length);
+        }
+        byte[] response = new byte[length];
+        in.readFully(response);
+
+        HttpHeaders headers;
+        try {
+            headers = ResponseEntityCodec.decodeHeaders(ByteBuffer.wrap(response));
+        } catch (RuntimeException e) {
+            logger.warn(SNAPSHOT_ENTRY_ERROR_PATTERN, url, snapshotFile, name, e.toString());
+            return false;
+        }
+        String etag = headers.getETag();
+        String lastModified = headers.getFirst(HttpHeaders.LAST_MODIFIED);
+        long hardLifetime = getHardLifetime((etag != null) || (lastModified != null));
+        if (((hardLifetime != INFINITE_LIFETIME) && (age > hardLifetime))
+                || !ClassUtils.isPresent(responseTypeName, getClass().getClassLoader())) {
+            return false;
+        }
+        Class<?> responseType = ClassUtils.resolveClassName(responseTypeName, getClass().getClassLoader());
+        CacheKey key = new CacheKey(url, responseType, uriVariables);
+        long timestamp = getTimestamp() - age;
+        CacheValue value;
+        if (offHeap) {
+            value = new CacheValue(key, getTags(url), etag, lastModified, timestamp, null,
+                    ResponseEntityCodec.toDirect(response), ENTRY_OVERHEAD + response.length, false, 0, null, null);
+        } else {
+            ResponseEntity<?> decoded;
+            try {
+                decoded = ResponseEntityCodec.decode(ByteBuffer.wrap(response), responseType);
+            } catch (RuntimeException e) {
+                // Such as a response type changed since the save.
+                logger.warn(SNAPSHOT_ENTRY_ERROR_PATTERN, url, snapshotFile, name, e.toString());
+                return false;
             }
+            // Weighed from its encoded form, rather than serialized again.
+            value = new CacheValue(key, getTags(url), etag, lastModified, timestamp, decoded, null,
+                    ENTRY_OVERHEAD + JSON_HEAP_RATIO * response.length, false, 0, null, null);
         }
-        // "Preconditions" and logging arguments should not require evaluation.
-        logger.info(MessageFormat.format(END_CACHE_PRUNE_PATTERN, count, name));
+        putValue(value);
+        return true;
     }
 
 }
@@ -0,0 +1,91 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.binder.cache.CacheMeterBinder;
+
+// Meters of a ResponseEntityCache, tagged with its name: the common cache meters
+// (cache.gets with result hit or miss, cache.puts, cache.evictions, cache.size),
+// plus its weight, its expirations, revalidations and rejections, the duration
+// of its expiry tasks and eviction passes, and the queue size of the expiry
+// scheduler. They read the counters of the cache, which is only weakly
+// referenced.
+public class ResponseEntityCacheMetrics extends CacheMeterBinder<ResponseEntityCache> {
+
+    public ResponseEntityCacheMetrics(ResponseEntityCache cache, Iterable<Tag> tags) {
+        super(cache, cache.getName(), tags);
+    }
+
+    @Override
+    protected Long size() {
+        ResponseEntityCache cache = getCache();
+        return cache == null ? null : (long) cache.getSize();
+    }
+
+    @Override
+    protected long hitCount() {
+        ResponseEntityCache cache = getCache();
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @Override
+    protected Long missCount() {
+        ResponseEntityCache cache = getCache();
+        return cache == null ? null : cache.getMissCount();
+    }
+
+    @Override
+    protected Long evictionCount() {
+        ResponseEntityCache cache = getCache();
+        return cache == null ? null : cache.getEvictionCount();
+    }
+
+    @Override
+    protected long putCount() {
+        ResponseEntityCache cache = getCache();
+        return cache == null ? 0 : cache.getPutCount();
+    }
+
+    @Override
+    protected void bindImplementationSpecificMetrics(MeterRegistry registry) {
+        ResponseEntityCache cache = getCache();
+        Gauge.builder("cache.weight", cache, ResponseEntityCache::getWeight)
+                .tags(getTagsWithCacheName())
+                .description("Estimated size of the cached responses")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        FunctionCounter.builder("cache.expirations", cache, ResponseEntityCache::getExpirationCount)
+                .tags(getTagsWithCacheName())
+                .description("Entries removed at the end of their lifetime")
+                .register(registry);
+        FunctionCounter.builder("cache.revalidations", cache, ResponseEntityCache::getRevalidationCount)
+                .tags(getTagsWithCacheName())
+                .description("Expired entries made fresh again by a 304 Not Modified response")
+                .register(registry);
+        FunctionCounter.builder("cache.rejections", cache, ResponseEntityCache::getRejectionCount)
+                .tags(getTagsWithCacheName())
+                .description("Responses not cached for being heavier than the whole cache")
+                .register(registry);
+        FunctionTimer.builder("cache.expiry", cache, ResponseEntityCache::getExpiryRunCount,
+                ResponseEntityCache::getExpiryTime, TimeUnit.NANOSECONDS)
+                .tags(getTagsWithCacheName())
+                .description("Expiry tasks run by the expiry scheduler")
+                .register(registry);
+        FunctionTimer.builder("cache.eviction", cache, ResponseEntityCache::getEvictionRunCount,
+                ResponseEntityCache::getEvictionTime, TimeUnit.NANOSECONDS)
+                .tags(getTagsWithCacheName())
+                .description("Eviction passes of the cache over capacity")
+                .register(registry);
+        // Shared by every cache, registered once.
+        Gauge.builder("cache.expiry.queue", ExpiryScheduler::getQueueSize)
+                .description("Pending tasks of the expiry scheduler")
+                .register(registry);
+    }
+
+}
@@ -0,0 +1,155 @@
+package onl.gcm.hermes.server;
+
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+// Owner of every named ResponseEntityCache: the caches of the controllers and of
+// their routes. It binds their meters, saves and loads their snapshots, and
+// applies the invalidations received from the other nodes.
+@Component
+@PropertySource("classpath:servers.properties")
+public class ResponseEntityCacheRegistry {
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    @Value("${hermes.server.cache.snapshot.dir}")
+    private String snapshotDir;
+
+    @Value("${hermes.server.cache.snapshot.delay}")
+    private long snapshotDelay;
+
+    @Autowired
+    private CacheInvalidationBus invalidationBus;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentHashMap<String, ResponseEntityCache> caches = new ConcurrentHashMap<>();
+
+    // Set once the application is ready, from when snapshots are loaded as soon as
+    // caches are created.
+    private boolean ready;
+
+    // Get the named cache, created and set up by the configurer if it does not
+    // exist yet.
+    public ResponseEntityCache getCache(String name, Consumer<ResponseEntityCache> configurer) {
+        ResponseEntityCache cache = caches.get(name);
+        return cache == null ? createCache(name, configurer) : cache;
+    }
+
+    // Get the named cache, or null.
+    public ResponseEntityCache getCache(String name) {
+        return caches.get(name);
+    }
+
+    public Collection<ResponseEntityCache> getCaches() {
+        return Collections.unmodifiableCollection(caches.values());
+    }
+
+    private synchronized ResponseEntityCache createCache(String name, Consumer<ResponseEntityCache> configurer) {
+        ResponseEntityCache cache = caches.get(name);
+        if (cache != null) {
+            return cache;
+        }
+
+        cache = new ResponseEntityCache(name);
+        configurer.accept(cache);
+        new ResponseEntityCacheMetrics(cache, Tags.empty()).bindTo(meterRegistry);
+        caches.put(name, cache);
+        if (ready) {
+            setSnapshot(cache);
+        }
+        return cache;
+    }
+
+    // Apply the invalidation to the local cache, then send it to the other nodes.
+    public void invalidate(CacheInvalidation invalidation) {
+        apply(invalidation);
+        invalidationBus.publish(invalidation);
+    }
+
+    // Send the invalidation, already applied locally, to the other nodes.
+    public void publish(CacheInvalidation invalidation) {
+        invalidationBus.publish(invalidation);
+    }
+
+    public void clearAll() {
+        for (ResponseEntityCache cache : caches.values()) {
+            invalidate(CacheInvalidation.clear(cache.getName()));
+        }
+    }
+
+    private void apply(CacheInvalidation invalidation) {
+        ResponseEntityCache cache = caches.get(invalidation.getCacheName());
+        if (cache == null) {
+            return;
+        }
+
+        switch (invalidation.getType()) {
+        case CLEAR:
+            cache.clearCache();
+            break;
+        case URL:
+            cache.removeCacheByUrl(invalidation.getUrl());
+            break;
+        case URL_PREFIX:
+            cache.removeCacheByUrlPrefix(invalidation.getUrl());
+            break;
+        case TAG:
+            cache.removeCacheByTag(invalidation.getTag());
+            break;
+        default:
+            if (ClassUtils.isPresent(invalidation.getResponseType(), getClass().getClassLoader())) {
+                Class<?> responseType = ClassUtils.resolveClassName(invalidation.getResponseType(),
+                        getClass().getClassLoader());
+                if (invalidation.getType() == CacheInvalidation.Type.KEY) {
+                    cache.removeCache(invalidation.getUrl(), responseType, invalidation.getUriVariables());
+                } else {
+                    cache.removeCache(responseType);
+                }
+            }
+        }
+    }
+
+    private void setSnapshot(ResponseEntityCache cache) {
+        if (!snapshotDir.isEmpty()) {
+            cache.setSnapshot(Paths.get(snapshotDir, cache.getName() + SNAPSHOT_SUFFIX), snapshotDelay);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        invalidationBus.subscribe(this::apply);
+    }
+
+    // Load the snapshots once the controllers have set the cache lifetimes, which
+    // decide the entries still worth loading.
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void loadSnapshots() {
+        ready = true;
+        caches.values().forEach(this::setSnapshot);
+    }
+
+    @PreDestroy
+    private void saveSnapshots() {
+        caches.values().forEach(ResponseEntityCache::saveSnapshot);
+    }
+
+}
@@ -0,0 +1,205 @@
+package onl.gcm.hermes.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+// Binary representation of a response (status, headers and body), used to keep
+// cached responses out of the heap. Bodies are stored as raw bytes, UTF-8 text or
+// JSON, and deserialized into the response type on each read. The URI variables
+// of cache keys can also be encoded, as long as they are strings or integers.
+public final class ResponseEntityCodec {
+
+    private static final byte NULL_BODY = 0;
+    private static final byte BYTES_BODY = 1;
+    private static final byte STRING_BODY = 2;
+    private static final byte JSON_BODY = 3;
+    private static final byte STRING_VARIABLE = 'S';
+    private static final byte INTEGER_VARIABLE = 'I';
+    private static final byte LONG_VARIABLE = 'L';
+
+    // Same configuration as the message converters of the RestTemplate.
+    private static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().build();
+
+    private ResponseEntityCodec() {
+    }
+
+    public static byte[] encode(ResponseEntity<?> response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(response.getStatusCodeValue());
+        HttpHeaders headers = response.getHeaders();
+        out.writeInt(headers.size());
+        for (Entry<String, List<String>> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            out.writeInt(header.getValue().size());
+            for (String value : header.getValue()) {
+                writeString(out, value);
+            }
+        }
+        Object body = response.getBody();
+        if (body == null) {
+            out.writeByte(NULL_BODY);
+        } else if (body instanceof byte[]) {
+            out.writeByte(BYTES_BODY);
+            writeBytes(out, (byte[]) body);
+        } else if (body instanceof String) {
+            out.writeByte(STRING_BODY);
+            writeString(out, (String) body);
+        } else {
+            out.writeByte(JSON_BODY);
+            writeBytes(out, OBJECT_MAPPER.writeValueAsBytes(body));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Copy the encoded response into a direct buffer, outside of the heap.
+    public static ByteBuffer encodeDirect(ResponseEntity<?> response) throws IOException {
+        return toDirect(encode(response));
+    }
+
+    public static ByteBuffer toDirect(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    // The buffer is read through a duplicate, so that it can be decoded
+    // concurrently.
+    @SuppressWarnings("unchecked")
+    public static <T> ResponseEntity<T> decode(ByteBuffer buffer, Class<T> responseType) {
+        ByteBuffer in = buffer.duplicate();
+        int status = in.getInt();
+        HttpHeaders headers = readHeaders(in);
+        Object body;
+        byte bodyType = in.get();
+        switch (bodyType) {
+        case NULL_BODY:
+            body = null;
+            break;
+        case BYTES_BODY:
+            body = readBytes(in);
+            break;
+        case STRING_BODY:
+            body = readString(in);
+            break;
+        case JSON_BODY:
+            int length = in.getInt();
+            in.limit(in.position() + length);
+            try {
+                body = OBJECT_MAPPER.readValue(new ByteBufferBackedInputStream(in), responseType);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            break;
+        default:
+            throw new IllegalStateException("Unknown body type: " + bodyType);
+        }
+        // Type safety: Unchecked cast from Object to T.
+        return ResponseEntity.status(status).headers(headers).body((T) body);
+    }
+
+    // Decode the headers only, leaving the body encoded.
+    public static HttpHeaders decodeHeaders(ByteBuffer buffer) {
+        ByteBuffer in = buffer.duplicate();
+        in.getInt();
+        return readHeaders(in);
+    }
+
+    public static boolean isEncodable(Object[] uriVariables) {
+        for (Object uriVariable : uriVariables) {
+            if (!(uriVariable instanceof String) && !(uriVariable instanceof Integer)
+                    && !(uriVariable instanceof Long)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The variables must be encodable.
+    public static void writeUriVariables(DataOutput out, Object[] uriVariables) throws IOException {
+        out.writeInt(uriVariables.length);
+        for (Object uriVariable : uriVariables) {
+            if (uriVariable instanceof String) {
+                out.writeByte(STRING_VARIABLE);
+                out.writeUTF((String) uriVariable);
+            } else if (uriVariable instanceof Integer) {
+                out.writeByte(INTEGER_VARIABLE);
+                out.writeInt((Integer) uriVariable);
+            } else {
+                out.writeByte(LONG_VARIABLE);
+                out.writeLong((Long) uriVariable);
+            }
+        }
+    }
+
+    public static Object[] readUriVariables(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid URI variable count: " + count);
+        }
+        Object[] uriVariables = new Object[count];
+        for (int i = 0; i < uriVariables.length; i++) {
+            byte type = in.readByte();
+            if (type == STRING_VARIABLE) {
+                uriVariables[i] = in.readUTF();
+            } else if (type == INTEGER_VARIABLE) {
+                uriVariables[i] = in.readInt();
+            } else if (type == LONG_VARIABLE) {
+                uriVariables[i] = in.readLong();
+            } else {
+                throw new IOException("Unknown URI variable type: " + type);
+            }
+        }
+        return uriVariables;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static HttpHeaders readHeaders(ByteBuffer in) {
+        HttpHeaders headers = new HttpHeaders();
+        int headerCount = in.getInt();
+        for (int i = 0; i < headerCount; i++) {
+            String name = readString(in);
+            int valueCount = in.getInt();
+            for (int j = 0; j < valueCount; j++) {
+                headers.add(name, readString(in));
+            }
+        }
+        return headers;
+    }
+
+    private static String readString(ByteBuffer in) {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] value = new byte[in.getInt()];
+        in.get(value);
+        return value;
+    }
+
+}
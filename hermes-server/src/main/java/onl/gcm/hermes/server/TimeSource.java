@@ -0,0 +1,27 @@
+package onl.gcm.hermes.server;
+
+// Time read by the caches and the circuit breakers, so that tests can control it.
+public interface TimeSource {
+
+    TimeSource SYSTEM = new TimeSource() {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+    };
+
+    // Monotonic time in ns, only meaningful compared with other values of this
+    // source.
+    long nanoTime();
+
+    // Wall clock time in ms since the epoch.
+    long currentTimeMillis();
+
+}
@@ -0,0 +1,248 @@
+package onl.gcm.hermes.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import onl.gcm.hermes.server.CacheInvalidation.Type;
+
+// Bus sending each invalidation in a UDP datagram to every peer, and listening
+// to theirs on a local address and port. Several nodes can run on one machine
+// with distinct ports. Datagrams from other sources than the peers are dropped,
+// as well as those whose signature is wrong when a shared secret is set.
+// Delivery is best effort: a lost datagram leaves the entry on the peer until it
+// expires.
+@Component
+@ConditionalOnProperty(name = "hermes.server.invalidation.bus", havingValue = "udp")
+public class UdpCacheInvalidationBus implements CacheInvalidationBus {
+
+    private static final String THREAD_NAME = "hermes-invalidation";
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final String SEND_ERROR_PATTERN = "Cannot send cache invalidation to {}: {}";
+    private static final String RECEIVED_PATTERN = "Received {} invalidation of cache {} from {}.";
+    private static final String RECEIVE_ERROR_PATTERN = "Cannot read cache invalidation: {}";
+    private static final String APPLY_ERROR_PATTERN = "Cannot apply {} invalidation of cache {}: {}";
+    private static final String UNKNOWN_SOURCE_PATTERN = "Dropped cache invalidation from {}, not a peer.";
+    private static final String BAD_SIGNATURE_PATTERN = "Dropped cache invalidation from {}, wrong signature.";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${hermes.server.invalidation.udp.address}")
+    private String address;
+
+    @Value("${hermes.server.invalidation.udp.port}")
+    private int port;
+
+    // host:port of the other nodes.
+    @Value("${hermes.server.invalidation.udp.peers}")
+    private String[] peers;
+
+    // Key of the signature of the datagrams, or empty not to sign them.
+    @Value("${hermes.server.invalidation.udp.secret}")
+    private String secret;
+
+    // Identifies the invalidations of this node, ignored if sent back by a peer.
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Consumer<CacheInvalidation>> listeners = new CopyOnWriteArrayList<>();
+    private final List<InetSocketAddress> peerAddresses = new ArrayList<>();
+
+    private SecretKeySpec secretKey;
+
+    private DatagramSocket socket;
+
+    @Override
+    public void publish(CacheInvalidation invalidation) {
+        invalidation.setOrigin(nodeId);
+        byte[] data;
+        try {
+            data = sign(encode(invalidation));
+        } catch (IOException | GeneralSecurityException e) {
+            logger.warn(SEND_ERROR_PATTERN, peerAddresses, e.getMessage());
+            return;
+        }
+        for (InetSocketAddress peer : peerAddresses) {
+            try {
+                socket.send(new DatagramPacket(data, data.length, peer));
+            } catch (IOException e) {
+                logger.warn(SEND_ERROR_PATTERN, peer, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<CacheInvalidation> listener) {
+        listeners.add(listener);
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            CacheInvalidation invalidation;
+            try {
+                socket.receive(packet);
+                if (!peerAddresses.contains(packet.getSocketAddress())) {
+                    logger.warn(UNKNOWN_SOURCE_PATTERN, packet.getSocketAddress());
+                    continue;
+                }
+                int length = verify(packet.getData(), packet.getLength());
+                if (length < 0) {
+                    logger.warn(BAD_SIGNATURE_PATTERN, packet.getSocketAddress());
+                    continue;
+                }
+                invalidation = decode(packet.getData(), length);
+            } catch (SocketException e) {
+                // Closed socket.
+                continue;
+            } catch (IOException | GeneralSecurityException e) {
+                logger.warn(RECEIVE_ERROR_PATTERN, e.getMessage());
+                continue;
+            }
+
+            if (!nodeId.equals(invalidation.getOrigin())) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(RECEIVED_PATTERN, invalidation.getType(), invalidation.getCacheName(),
+                            packet.getSocketAddress());
+                }
+                try {
+                    listeners.forEach(listener -> listener.accept(invalidation));
+                } catch (RuntimeException e) {
+                    logger.warn(APPLY_ERROR_PATTERN, invalidation.getType(), invalidation.getCacheName(),
+                            e.getMessage());
+                }
+            }
+        }
+    }
+
+    // The signature of the data is appended to it.
+    private byte[] sign(byte[] data) throws GeneralSecurityException {
+        if (secretKey == null) {
+            return data;
+        }
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(secretKey);
+        mac.update(data);
+        byte[] signed = Arrays.copyOf(data, data.length + MAC_LENGTH);
+        mac.doFinal(signed, data.length);
+        return signed;
+    }
+
+    // Length of the data without its signature, or -1 if it is not signed with the
+    // secret.
+    private int verify(byte[] data, int length) throws GeneralSecurityException {
+        if (secretKey == null) {
+            return length;
+        }
+        int dataLength = length - MAC_LENGTH;
+        if (dataLength < 0) {
+            return -1;
+        }
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(secretKey);
+        mac.update(data, 0, dataLength);
+        byte[] signature = Arrays.copyOfRange(data, dataLength, length);
+        return MessageDigest.isEqual(mac.doFinal(), signature) ? dataLength : -1;
+    }
+
+    private static byte[] encode(CacheInvalidation invalidation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(invalidation.getOrigin());
+        out.writeUTF(invalidation.getCacheName());
+        Type type = invalidation.getType();
+        out.writeByte(type.ordinal());
+        if ((type == Type.KEY) || (type == Type.RESPONSE_TYPE)) {
+            out.writeUTF(invalidation.getResponseType());
+        }
+        if ((type == Type.KEY) || (type == Type.URL) || (type == Type.URL_PREFIX)) {
+            out.writeUTF(invalidation.getUrl());
+        }
+        if (type == Type.KEY) {
+            ResponseEntityCodec.writeUriVariables(out, invalidation.getUriVariables());
+        }
+        if (type == Type.TAG) {
+            out.writeUTF(invalidation.getTag());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static CacheInvalidation decode(byte[] data, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        CacheInvalidation invalidation = new CacheInvalidation();
+        invalidation.setOrigin(in.readUTF());
+        invalidation.setCacheName(in.readUTF());
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown invalidation type: " + ordinal);
+        }
+        Type type = Type.values()[ordinal];
+        invalidation.setType(type);
+        if ((type == Type.KEY) || (type == Type.RESPONSE_TYPE)) {
+            invalidation.setResponseType(in.readUTF());
+        }
+        if ((type == Type.KEY) || (type == Type.URL) || (type == Type.URL_PREFIX)) {
+            invalidation.setUrl(in.readUTF());
+        }
+        if (type == Type.KEY) {
+            invalidation.setUriVariables(ResponseEntityCodec.readUriVariables(in));
+        }
+        if (type == Type.TAG) {
+            invalidation.setTag(in.readUTF());
+        }
+        return invalidation;
+    }
+
+    @PostConstruct
+    private void init() throws SocketException {
+        for (String peer : peers) {
+            if (peer.trim().isEmpty()) {
+                continue;
+            }
+            int separator = peer.lastIndexOf(':');
+            peerAddresses.add(new InetSocketAddress(peer.substring(0, separator).trim(),
+                    Integer.parseInt(peer.substring(separator + 1).trim())));
+        }
+        if (!secret.isEmpty()) {
+            secretKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        }
+        socket = new DatagramSocket(new InetSocketAddress(address, port));
+        Thread receiver = new Thread(this::receive, THREAD_NAME);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        socket.close();
+    }
+
+}
@@ -0,0 +1,513 @@
+package onl.gcm.hermes.server;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+
+import onl.gcm.hermes.client.HermesClient;
+
+// Circuit breaker and bulkhead of every upstream server (scheme, host and port),
+// so that calls to a failing upstream fail immediately and a slow upstream
+// cannot starve the others. Its calls time out after a multiple of their recent
+// latency percentile, and GET calls can be hedged: a second attempt is sent if the
+// first one is slower than most recent calls, the first response winning.
+@Component
+@PropertySource("classpath:servers.properties")
+public class UpstreamGuard {
+
+    private static final String CIRCUIT_OPEN_PATTERN = "Circuit breaker of %s is open.";
+    private static final String BULKHEAD_FULL_PATTERN = "Too many concurrent calls to %s.";
+    private static final String SCHEME_SEPARATOR = "://";
+    private static final char PATH_SEPARATOR = '/';
+    private static final String THREAD_NAME_PREFIX = "hermes-probe-";
+    private static final String TIMER_THREAD_NAME_PREFIX = "hermes-upstream-timer-";
+    private static final String HEDGE_THREAD_NAME_PREFIX = "hermes-hedge-";
+    private static final String TIMEOUT_PATTERN = "No response from %s within %d ms.";
+    private static final String TIMEOUT_METER = "hermes.upstream.timeout";
+    private static final String HEDGES_METER = "hermes.upstream.hedges";
+    private static final int PERCENT = 100;
+    private static final String REQUESTS_METER = "hermes.upstream.requests";
+    private static final String UPSTREAM_TAG = "upstream";
+    private static final String STATUS_TAG = "status";
+    // Status of the successful calls that return no response (blocking DELETE).
+    private static final String SUCCESS_STATUS = "SUCCESS";
+
+    public class Upstream {
+        private final String name;
+        private final CircuitBreaker circuitBreaker;
+        private final Bulkhead bulkhead;
+        private final LatencyTracker latencyTracker;
+        // Latency of the calls by status.
+        private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+        private final LongAdder callCount = new LongAdder();
+        private final LongAdder hedgeCount = new LongAdder();
+        // Meters reading this upstream, removed when it is replaced.
+        private final Gauge timeoutGauge;
+        private final FunctionCounter hedgeCounter;
+
+        private Upstream(String name, BooleanSupplier aliveCheck) {
+            this.name = name;
+            this.circuitBreaker = new CircuitBreaker(name, circuitWindowSize, circuitMinimumCalls,
+                    circuitFailureRateThreshold, circuitSlowCallDuration, circuitSlowCallRateThreshold,
+                    circuitOpenDuration, aliveCheck, probeExecutor, TimeSource.SYSTEM);
+            this.bulkhead = new Bulkhead(bulkheadMaxConcurrentCalls, bulkheadMaxWait);
+            this.latencyTracker = new LatencyTracker(latencyWindowSize, latencyMinimumCalls);
+            this.timeoutGauge = Gauge.builder(TIMEOUT_METER, this, Upstream::getTimeout)
+                    .tag(UPSTREAM_TAG, name)
+                    .description("Adaptive timeout of the calls to the upstream server (0 for the read timeout)")
+                    .baseUnit(BaseUnits.MILLISECONDS)
+                    .register(meterRegistry);
+            this.hedgeCounter = FunctionCounter.builder(HEDGES_METER, hedgeCount, LongAdder::sum)
+                    .tag(UPSTREAM_TAG, name)
+                    .description("Second attempts sent for slow GET calls")
+                    .register(meterRegistry);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public CircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public Bulkhead getBulkhead() {
+            return bulkhead;
+        }
+
+        public LatencyTracker getLatencyTracker() {
+            return latencyTracker;
+        }
+
+        // Timeout in ms of the calls: a multiple of the latency percentile within the
+        // minimum and maximum timeouts, the maximum until there have been enough
+        // calls. 0 if adaptive timeouts are disabled, for the read timeout.
+        public long getTimeout() {
+            if (!adaptiveTimeout) {
+                return 0;
+            }
+            long percentile = latencyTracker.getPercentile(timeoutPercentile);
+            if (percentile < 0) {
+                return timeoutMax;
+            }
+            long timeout = (long) (TimeUnit.NANOSECONDS.toMillis(percentile) * timeoutMultiplier);
+            return Math.min(timeoutMax, Math.max(timeoutMin, timeout));
+        }
+
+        // Delay in ms after which a GET call is hedged, or -1 if it must not be.
+        private long getHedgeDelay() {
+            if (!hedgeEnabled) {
+                return -1;
+            }
+            long percentile = latencyTracker.getPercentile(hedgePercentile);
+            return percentile < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(percentile);
+        }
+
+        // Hedges are limited to a share of the calls, so that an upstream server slow
+        // for every call does not get twice the load.
+        private boolean tryHedge() {
+            if (hedgeCount.sum() * PERCENT >= hedgeMaxPercent * callCount.sum()) {
+                return false;
+            }
+            hedgeCount.increment();
+            return true;
+        }
+
+        private void acquire() throws UpstreamUnavailableException {
+            if (!bulkhead.tryAcquire()) {
+                throw new UpstreamUnavailableException(String.format(BULKHEAD_FULL_PATTERN, name));
+            }
+            if (!circuitBreaker.tryAcquirePermission()) {
+                bulkhead.release();
+                throw new UpstreamUnavailableException(String.format(CIRCUIT_OPEN_PATTERN, name));
+            }
+            callCount.increment();
+        }
+
+        private void release(Object result, Throwable t, long start) {
+            bulkhead.release();
+            record(result, t, start);
+        }
+
+        // Calls cancelled because they lost a hedge are not recorded.
+        private void record(Object result, Throwable t, long start) {
+            long duration = System.nanoTime() - start;
+            if (t instanceof CancellationException) {
+                return;
+            }
+            circuitBreaker.onResult(isFailure(t), duration);
+            latencyTracker.record(duration);
+            timers.computeIfAbsent(getStatus(result, t), status -> Timer.builder(REQUESTS_METER)
+                    .tag(UPSTREAM_TAG, name)
+                    .tag(STATUS_TAG, status)
+                    .description("Calls to the upstream server")
+                    .register(meterRegistry))
+                    .record(duration, TimeUnit.NANOSECONDS);
+        }
+
+        private <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> call) {
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                release(null, e, start);
+                throw e;
+            }
+
+            CompletableFuture<T> result = new CompletableFuture<>();
+            long timeout = getTimeout();
+            ScheduledFuture<?> timer = timeout <= 0 ? null
+                    : timerExecutor.schedule(() -> result.completeExceptionally(
+                            new ResourceAccessException(String.format(TIMEOUT_PATTERN, name, timeout))),
+                            timeout, TimeUnit.MILLISECONDS);
+            // The permit is held until the call itself completes, which may be after the
+            // result for a blocking call that does not stop once cancelled.
+            future.whenComplete((response, t) -> {
+                bulkhead.release();
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                if (t == null) {
+                    result.complete(response);
+                } else {
+                    result.completeExceptionally(t);
+                }
+            });
+            // The call is cancelled once it timed out or lost a hedge.
+            result.whenComplete((response, t) -> {
+                if (!future.isDone()) {
+                    future.cancel(true);
+                }
+                record(response, t, start);
+            });
+            return result;
+        }
+    }
+
+    // Attempt of a blocking call, run in a hedge thread. Cancelling it interrupts
+    // the thread, but it completes only once the thread returns, so that the
+    // bulkhead permit of the attempt is held until then.
+    private static final class BlockingAttempt<T> extends CompletableFuture<T> implements Runnable {
+        private final Supplier<T> call;
+        // Guards thread, so that a cancellation never interrupts the next task of
+        // the thread.
+        private final Object lock = new Object();
+        private Thread thread;
+        private boolean cancelled;
+
+        private BlockingAttempt(Supplier<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (cancelled) {
+                    completeExceptionally(new CancellationException());
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
+            try {
+                complete(call.get());
+            } catch (Throwable t) {
+                completeExceptionally(t);
+            } finally {
+                synchronized (lock) {
+                    thread = null;
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (lock) {
+                if (isDone()) {
+                    return false;
+                }
+                cancelled = true;
+                if (mayInterruptIfRunning && (thread != null)) {
+                    thread.interrupt();
+                }
+                return true;
+            }
+        }
+    }
+
+    @Value("${hermes.server.circuit.window.size}")
+    private int circuitWindowSize;
+
+    @Value("${hermes.server.circuit.minimum.calls}")
+    private int circuitMinimumCalls;
+
+    @Value("${hermes.server.circuit.failure.rate.threshold}")
+    private int circuitFailureRateThreshold;
+
+    @Value("${hermes.server.circuit.slow.call.duration}")
+    private long circuitSlowCallDuration;
+
+    @Value("${hermes.server.circuit.slow.call.rate.threshold}")
+    private int circuitSlowCallRateThreshold;
+
+    @Value("${hermes.server.circuit.open.duration}")
+    private long circuitOpenDuration;
+
+    @Value("${hermes.server.bulkhead.max.concurrent.calls}")
+    private int bulkheadMaxConcurrentCalls;
+
+    @Value("${hermes.server.bulkhead.max.wait}")
+    private long bulkheadMaxWait;
+
+    @Value("${hermes.server.latency.window.size}")
+    private int latencyWindowSize;
+
+    @Value("${hermes.server.latency.minimum.calls}")
+    private int latencyMinimumCalls;
+
+    @Value("${hermes.server.timeout.adaptive}")
+    private boolean adaptiveTimeout;
+
+    @Value("${hermes.server.timeout.percentile}")
+    private double timeoutPercentile;
+
+    @Value("${hermes.server.timeout.multiplier}")
+    private double timeoutMultiplier;
+
+    @Value("${hermes.server.timeout.min}")
+    private long timeoutMin;
+
+    @Value("${hermes.server.timeout.max}")
+    private long timeoutMax;
+
+    @Value("${hermes.server.hedge.enabled}")
+    private boolean hedgeEnabled;
+
+    @Value("${hermes.server.hedge.percentile}")
+    private double hedgePercentile;
+
+    @Value("${hermes.server.hedge.max.percent}")
+    private int hedgeMaxPercent;
+
+    @Autowired
+    private HermesClient hermesClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentHashMap<String, Upstream> upstreams = new ConcurrentHashMap<>();
+
+    private ExecutorService probeExecutor;
+
+    // Times out the asynchronous calls and sends the hedges.
+    private ScheduledExecutorService timerExecutor;
+
+    // Runs the blocking calls that are hedged.
+    private ExecutorService hedgeExecutor;
+
+    // Register the upstream server of url, whose circuit breaker will call aliveUrl
+    // to know whether it is back. The meters of the upstream it replaces are
+    // removed first, else the registry would return them, still reading it.
+    public void register(String url, String aliveUrl) {
+        upstreams.compute(getUpstreamName(url), (name, previous) -> {
+            if (previous != null) {
+                meterRegistry.remove(previous.timeoutGauge);
+                meterRegistry.remove(previous.hedgeCounter);
+            }
+            return new Upstream(name, () -> isAlive(aliveUrl));
+        });
+    }
+
+    public Collection<Upstream> getUpstreams() {
+        return upstreams.values();
+    }
+
+    public <T> T execute(String url, Supplier<T> call) throws RestClientException {
+        Upstream upstream = getUpstream(url);
+        upstream.acquire();
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            upstream.release(result, null, start);
+            return result;
+        } catch (RuntimeException e) {
+            upstream.release(null, e, start);
+            throw e;
+        }
+    }
+
+    // Cancelling the returned future cancels the call.
+    public <T> CompletableFuture<T> executeAsync(String url, Supplier<CompletableFuture<T>> call) {
+        Upstream upstream;
+        try {
+            upstream = getUpstream(url);
+            upstream.acquire();
+        } catch (UpstreamUnavailableException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        return upstream.callAsync(call);
+    }
+
+    // Execute an idempotent call (GET), hedged if enabled: the call then runs in
+    // another thread, so that a second attempt can be sent while waiting for it.
+    public <T> T executeHedged(String url, Supplier<T> call) throws RestClientException {
+        Upstream upstream = upstreams.get(getUpstreamName(url));
+        if ((upstream == null) || (upstream.getHedgeDelay() < 0)) {
+            return execute(url, call);
+        }
+        return HermesClient.join(executeHedgedAsync(url, () -> {
+            BlockingAttempt<T> attempt = new BlockingAttempt<>(call);
+            hedgeExecutor.execute(attempt);
+            return attempt;
+        }));
+    }
+
+    // Execute an idempotent call (GET), sending a second attempt if it has not
+    // completed after the hedge percentile of the recent calls. The first response
+    // wins and the other attempt is cancelled; the call fails if both attempts
+    // fail, or if the first one fails before the second one is sent.
+    public <T> CompletableFuture<T> executeHedgedAsync(String url, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> primary = executeAsync(url, call);
+        Upstream upstream = upstreams.get(getUpstreamName(url));
+        long delay = upstream == null ? -1 : upstream.getHedgeDelay();
+        if ((delay < 0) || primary.isDone()) {
+            return primary;
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<T>> hedge = new AtomicReference<>();
+        ScheduledFuture<?> timer = timerExecutor.schedule(() -> {
+            if (!result.isDone() && upstream.tryHedge()) {
+                CompletableFuture<T> future = executeAsync(url, call);
+                hedge.set(future);
+                future.whenComplete((response, t) -> completeHedged(result, response, t, primary));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        primary.whenComplete((response, t) -> {
+            timer.cancel(false);
+            completeHedged(result, response, t, hedge.get());
+        });
+        result.whenComplete((response, t) -> {
+            primary.cancel(true);
+            CompletableFuture<T> future = hedge.get();
+            if (future != null) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    // Complete the hedged call with the response of an attempt, or with its error
+    // if the other attempt is not pending.
+    private static <T> void completeHedged(CompletableFuture<T> result, T response, Throwable t,
+            CompletableFuture<T> other) {
+        if (t == null) {
+            result.complete(response);
+        } else if ((other == null) || other.isDone()) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    private Upstream getUpstream(String url) {
+        return upstreams.computeIfAbsent(getUpstreamName(url), name -> new Upstream(name, null));
+    }
+
+    private boolean isAlive(String aliveUrl) {
+        hermesClient.getRestTemplate().getForEntity(aliveUrl, Void.class);
+        return true;
+    }
+
+    // Scheme, host and port of the URL (which may be a URI template).
+    private static String getUpstreamName(String url) {
+        int hostStart = url.indexOf(SCHEME_SEPARATOR);
+        int pathStart = url.indexOf(PATH_SEPARATOR, hostStart < 0 ? 0 : hostStart + SCHEME_SEPARATOR.length());
+        return pathStart < 0 ? url : url.substring(0, pathStart);
+    }
+
+    // Whether the upstream server failed. Client errors (4xx) mean that it is up.
+    public static boolean isFailure(Throwable t) {
+        Throwable cause = (t instanceof CompletionException) && (t.getCause() != null) ? t.getCause() : t;
+        return (cause != null) && !(cause instanceof HttpClientErrorException);
+    }
+
+    // HTTP status of the response or of the error, else the exception name.
+    private static String getStatus(Object result, Throwable t) {
+        Throwable cause = (t instanceof CompletionException) && (t.getCause() != null) ? t.getCause() : t;
+        if (cause instanceof RestClientResponseException) {
+            return Integer.toString(((RestClientResponseException) cause).getRawStatusCode());
+        }
+        if (cause != null) {
+            return cause.getClass().getSimpleName();
+        }
+        return result instanceof ResponseEntity ? Integer.toString(((ResponseEntity<?>) result).getStatusCodeValue())
+                : SUCCESS_STATUS;
+    }
+
+    @PostConstruct
+    private void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(THREAD_NAME_PREFIX);
+        threadFactory.setDaemon(true);
+        probeExecutor = Executors.newCachedThreadPool(threadFactory);
+        CustomizableThreadFactory timerThreadFactory = new CustomizableThreadFactory(TIMER_THREAD_NAME_PREFIX);
+        timerThreadFactory.setDaemon(true);
+        ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1, timerThreadFactory);
+        // Most timers are cancelled by a response before running.
+        scheduledExecutor.setRemoveOnCancelPolicy(true);
+        timerExecutor = scheduledExecutor;
+        // Each running attempt holds a bulkhead permit until its thread returns, so
+        // that the threads are bounded by the bulkheads.
+        CustomizableThreadFactory hedgeThreadFactory = new CustomizableThreadFactory(HEDGE_THREAD_NAME_PREFIX);
+        hedgeThreadFactory.setDaemon(true);
+        hedgeExecutor = Executors.newCachedThreadPool(hedgeThreadFactory);
+        if (adaptiveTimeout) {
+            // Blocking calls time out through the socket timeout of their request.
+            hermesClient.setReadTimeoutResolver(uri -> {
+                Upstream upstream = upstreams.get(getUpstreamName(uri.toString()));
+                return upstream == null ? 0 : (int) upstream.getTimeout();
+            });
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        probeExecutor.shutdownNow();
+        timerExecutor.shutdownNow();
+        hedgeExecutor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,15 @@
+package onl.gcm.hermes.server;
+
+import org.springframework.web.client.RestClientException;
+
+// Thrown instead of calling an upstream server whose circuit breaker is open or
+// whose bulkhead is full.
+public class UpstreamUnavailableException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UpstreamUnavailableException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,193 @@
+package onl.gcm.hermes.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import onl.gcm.hermes.client.HermesClient;
+import onl.gcm.hermes.db.service.LogEntryWriter;
+import onl.gcm.hermes.server.CacheRefresher;
+import onl.gcm.hermes.server.CompressedBodyAdvice;
+import onl.gcm.hermes.server.HostNameResolver;
+import onl.gcm.hermes.server.LoopbackCacheInvalidationBus;
+import onl.gcm.hermes.server.ManualTimeSource;
+import onl.gcm.hermes.server.ResponseEntityCache;
+import onl.gcm.hermes.server.ResponseEntityCacheRegistry;
+import onl.gcm.hermes.server.UpstreamGuard;
+
+// GET requests proxied by a HermesController whose collaborators are mocked, to an
+// upstream server mocked by a MockRestServiceServer.
+class HermesControllerTest {
+
+    private static final String URL = "http://upstream/test/{id}";
+    private static final String VERSION = "1.0";
+    private static final long LIFETIME = 1000;
+
+    private HermesController controller;
+    private ResponseEntityCacheRegistry cacheRegistry;
+    private MockRestServiceServer upstream;
+    private final ManualTimeSource timeSource = new ManualTimeSource();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        upstream = MockRestServiceServer.bindTo(restTemplate).build();
+        HermesClient hermesClient = mock(HermesClient.class);
+        when(hermesClient.getRestTemplate()).thenReturn(restTemplate);
+        when(hermesClient.getVersion()).thenReturn(VERSION);
+        UpstreamGuard upstreamGuard = mock(UpstreamGuard.class);
+        when(upstreamGuard.executeHedged(anyString(), any()))
+                .thenAnswer(invocation -> invocation.getArgument(1, Supplier.class).get());
+        HostNameResolver hostNameResolver = mock(HostNameResolver.class);
+        when(hostNameResolver.resolve(anyString())).thenAnswer(invocation -> invocation.getArgument(0));
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test/1");
+        request.addHeader(HermesClient.HERMES_CLIENT_VERSION_HEADER, VERSION);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        cacheRegistry = new ResponseEntityCacheRegistry();
+        ReflectionTestUtils.setField(cacheRegistry, "snapshotDir", "");
+        ReflectionTestUtils.setField(cacheRegistry, "invalidationBus", new LoopbackCacheInvalidationBus());
+        ReflectionTestUtils.setField(cacheRegistry, "meterRegistry", meterRegistry);
+
+        controller = new HermesController();
+        ReflectionTestUtils.setField(controller, "logSampleRate", 1.0);
+        ReflectionTestUtils.setField(controller, "versionWarningInterval", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        ReflectionTestUtils.setField(controller, "defaultCacheLifetime", LIFETIME);
+        ReflectionTestUtils.setField(controller, "defaultCacheStaleIfErrorLifetime",
+                ResponseEntityCache.ONE_HOUR_LIFETIME);
+        ReflectionTestUtils.setField(controller, "defaultCacheMaxEntries", 100L);
+        ReflectionTestUtils.setField(controller, "defaultCacheMaxBytes", -1L);
+        ReflectionTestUtils.setField(controller, "defaultCacheRefreshAheadHits", 10);
+        ReflectionTestUtils.setField(controller, "defaultNegativeCacheLifetime", LIFETIME);
+        ReflectionTestUtils.setField(controller, "defaultNegativeCacheMaxEntries", 100L);
+        ReflectionTestUtils.setField(controller, "defaultNegativeCacheStatuses", new int[] { 404, 410, 503 });
+        ReflectionTestUtils.setField(controller, "httpServletRequest", request);
+        ReflectionTestUtils.setField(controller, "hermesClient", hermesClient);
+        ReflectionTestUtils.setField(controller, "logEntryWriter", mock(LogEntryWriter.class));
+        ReflectionTestUtils.setField(controller, "cacheRefresher", mock(CacheRefresher.class));
+        ReflectionTestUtils.setField(controller, "hostNameResolver", hostNameResolver);
+        ReflectionTestUtils.setField(controller, "upstreamGuard", upstreamGuard);
+        ReflectionTestUtils.setField(controller, "cacheRegistry", cacheRegistry);
+        ReflectionTestUtils.setField(controller, "compressedBodyAdvice", mock(CompressedBodyAdvice.class));
+        ReflectionTestUtils.setField(controller, "meterRegistry", meterRegistry);
+        // No caller application names, rather than reading them from the Spring
+        // environment.
+        ReflectionTestUtils.setField(HermesController.class, "applications", new HashMap<>());
+        ReflectionTestUtils.invokeMethod(controller, "init");
+        getCache().setTimeSource(timeSource);
+        getNegativeCache().setTimeSource(timeSource);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.setField(HermesController.class, "applications", null);
+    }
+
+    private ResponseEntity<String> get() {
+        return controller.processGet(true, URL, String.class, 1);
+    }
+
+    private ResponseEntityCache getCache() {
+        return cacheRegistry.getCache(HermesController.class.getName());
+    }
+
+    private ResponseEntityCache getNegativeCache() {
+        return cacheRegistry.getCache(HermesController.class.getName() + ".negative");
+    }
+
+    // An error response of a listed status is cached, with its exception message,
+    // in the negative cache only.
+    @Test
+    void cachesTheErrorResponsesOfTheListedStatuses() {
+        upstream.expect(ExpectedCount.once(), requestTo("http://upstream/test/1"))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        ResponseEntity<String> response = get();
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+        assertNotNull(response.getHeaders().getFirst(HermesClient.EXCEPTION_MESSAGE_HEADER));
+        assertEquals(response, get());
+        upstream.verify();
+        assertEquals(0, getCache().getSize());
+        assertEquals(1, getNegativeCache().getSize());
+    }
+
+    // Other error responses are not cached: each request reaches the upstream
+    // server.
+    @Test
+    void doesNotCacheTheOtherErrorResponses() {
+        upstream.expect(ExpectedCount.twice(), requestTo("http://upstream/test/1"))
+                .andRespond(withStatus(HttpStatus.INTERNAL_SERVER_ERROR));
+
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, get().getStatusCode());
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, get().getStatusCode());
+        upstream.verify();
+        assertEquals(0, getCache().getSize());
+        assertEquals(0, getNegativeCache().getSize());
+    }
+
+    // Caching an error response removes the expired response of its key, and the
+    // other way around.
+    @Test
+    void replacesTheResponseOfTheKey() {
+        upstream.expect(ExpectedCount.once(), requestTo("http://upstream/test/1"))
+                .andRespond(withSuccess("test 1", MediaType.TEXT_PLAIN));
+        upstream.expect(ExpectedCount.once(), requestTo("http://upstream/test/1"))
+                .andRespond(withStatus(HttpStatus.GONE));
+        upstream.expect(ExpectedCount.once(), requestTo("http://upstream/test/1"))
+                .andRespond(withSuccess("test 2", MediaType.TEXT_PLAIN));
+
+        assertEquals("test 1", get().getBody());
+        timeSource.advance(LIFETIME + 1);
+        assertEquals(HttpStatus.GONE, get().getStatusCode());
+        assertEquals(0, getCache().getSize());
+        assertEquals(1, getNegativeCache().getSize());
+
+        timeSource.advance(LIFETIME + 1);
+        assertEquals("test 2", get().getBody());
+        upstream.verify();
+        assertEquals(1, getCache().getSize());
+        assertEquals(0, getNegativeCache().getSize());
+    }
+
+    // A server error of a listed status is not cached when the expired response
+    // can be served instead.
+    @Test
+    void servesTheStaleResponseRatherThanCachingAServerError() {
+        upstream.expect(ExpectedCount.once(), requestTo("http://upstream/test/1"))
+                .andRespond(withSuccess("test 1", MediaType.TEXT_PLAIN));
+        upstream.expect(ExpectedCount.once(), requestTo("http://upstream/test/1"))
+                .andRespond(withStatus(HttpStatus.SERVICE_UNAVAILABLE));
+
+        assertEquals("test 1", get().getBody());
+        timeSource.advance(LIFETIME + 1);
+        assertEquals("test 1", get().getBody());
+        upstream.verify();
+        assertEquals(1, getCache().getSize());
+        assertEquals(0, getNegativeCache().getSize());
+    }
+
+}
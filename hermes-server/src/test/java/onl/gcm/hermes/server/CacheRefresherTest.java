@@ -0,0 +1,85 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class CacheRefresherTest {
+
+    private static final String KEY = "http://upstream/test/1";
+
+    private CacheRefresher refresher;
+
+    @BeforeEach
+    void setUp() {
+        refresher = new CacheRefresher();
+        ReflectionTestUtils.setField(refresher, "threads", 2);
+        ReflectionTestUtils.setField(refresher, "queueCapacity", 10);
+        ReflectionTestUtils.invokeMethod(refresher, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(refresher, "destroy");
+    }
+
+    // Hits of a stale entry while it is being refreshed do not refresh it again.
+    @Test
+    void refreshesOnceAtATimePerKey() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger refreshes = new AtomicInteger();
+
+        assertTrue(refresher.refresh(KEY, () -> {
+            refreshes.incrementAndGet();
+            await(release);
+            done.countDown();
+        }));
+        assertFalse(refresher.refresh(KEY, refreshes::incrementAndGet));
+        assertEquals(1, refresher.getPendingCount());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForNoPending();
+
+        assertEquals(1, refreshes.get());
+        CountDownLatch again = new CountDownLatch(1);
+        assertTrue(refresher.refresh(KEY, again::countDown));
+        assertTrue(again.await(5, TimeUnit.SECONDS));
+    }
+
+    // A failed refresh does not keep the key pending.
+    @Test
+    void releasesTheKeyOfAFailedRefresh() throws InterruptedException {
+        assertTrue(refresher.refresh(KEY, () -> {
+            throw new IllegalStateException("upstream down");
+        }));
+        waitForNoPending();
+
+        assertEquals(0, refresher.getPendingCount());
+    }
+
+    private void waitForNoPending() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((refresher.getPendingCount() > 0) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
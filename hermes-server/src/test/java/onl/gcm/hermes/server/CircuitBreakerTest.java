@@ -0,0 +1,133 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import onl.gcm.hermes.server.CircuitBreaker.State;
+
+class CircuitBreakerTest {
+
+    private static final int WINDOW_SIZE = 10;
+    private static final int MINIMUM_CALLS = 4;
+    private static final int FAILURE_RATE_THRESHOLD = 50;
+    private static final long SLOW_CALL_DURATION = 1000;
+    private static final int SLOW_CALL_RATE_THRESHOLD = 50;
+    private static final long OPEN_DURATION = 100;
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(SLOW_CALL_DURATION);
+
+    private ManualTimeSource timeSource;
+
+    @BeforeEach
+    void setUp() {
+        timeSource = new ManualTimeSource();
+    }
+
+    // The probes run in the calling thread.
+    private CircuitBreaker newCircuitBreaker(BooleanSupplier aliveCheck) {
+        return new CircuitBreaker("upstream", WINDOW_SIZE, MINIMUM_CALLS, FAILURE_RATE_THRESHOLD,
+                SLOW_CALL_DURATION, SLOW_CALL_RATE_THRESHOLD, OPEN_DURATION, aliveCheck, Runnable::run, timeSource);
+    }
+
+    private static void call(CircuitBreaker circuitBreaker, boolean failure, long duration) {
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onResult(failure, duration);
+    }
+
+    @Test
+    void opensWhenTheFailureRateReachesTheThreshold() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(null);
+        call(circuitBreaker, false, FAST);
+        call(circuitBreaker, true, FAST);
+        call(circuitBreaker, false, FAST);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        call(circuitBreaker, true, FAST);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquirePermission());
+        assertEquals(1, circuitBreaker.getRejectedCount());
+    }
+
+    @Test
+    void opensWhenTheSlowCallRateReachesTheThreshold() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(null);
+        for (int i = 0; i < MINIMUM_CALLS; i++) {
+            call(circuitBreaker, false, i % 2 == 0 ? FAST : SLOW);
+        }
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    // Failures are only rated once the minimum number of calls is reached.
+    @Test
+    void staysClosedBeforeTheMinimumNumberOfCalls() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(null);
+        for (int i = 1; i < MINIMUM_CALLS; i++) {
+            call(circuitBreaker, true, FAST);
+        }
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    // Without alive check, the first call once half-open is the probe: the other
+    // calls are rejected until it succeeds.
+    @Test
+    void closesAfterASuccessfulProbeCall() {
+        CircuitBreaker circuitBreaker = open(newCircuitBreaker(null));
+        timeSource.advance(OPEN_DURATION);
+
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onResult(false, FAST);
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.tryAcquirePermission());
+    }
+
+    @Test
+    void opensAgainAfterAFailedProbeCall() {
+        CircuitBreaker circuitBreaker = open(newCircuitBreaker(null));
+        timeSource.advance(OPEN_DURATION);
+
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onResult(true, FAST);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquirePermission());
+    }
+
+    // With an alive check, the probe is the check rather than a call.
+    @Test
+    void probesWithTheAliveCheck() {
+        boolean[] alive = { false };
+        CircuitBreaker circuitBreaker = open(newCircuitBreaker(() -> alive[0]));
+        timeSource.advance(OPEN_DURATION - 1);
+        assertFalse(circuitBreaker.tryAcquirePermission());
+        timeSource.advance(1);
+
+        assertFalse(circuitBreaker.tryAcquirePermission());
+        assertEquals(State.OPEN, circuitBreaker.getState());
+
+        alive[0] = true;
+        timeSource.advance(OPEN_DURATION);
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    private static CircuitBreaker open(CircuitBreaker circuitBreaker) {
+        for (int i = 0; i < MINIMUM_CALLS; i++) {
+            call(circuitBreaker, true, FAST);
+        }
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        return circuitBreaker;
+    }
+
+}
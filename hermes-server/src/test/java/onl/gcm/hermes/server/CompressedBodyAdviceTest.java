@@ -0,0 +1,110 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+
+class CompressedBodyAdviceTest {
+
+    private static final String URL = "http://upstream/test/{id}";
+    private static final String ETAG = "\"v1\"";
+
+    // Response type serialized as JSON.
+    public static class Payload {
+        public String value;
+    }
+
+    private CompressedBodyAdvice advice;
+    private ObjectMapper objectMapper;
+    private ResponseEntityCache cache;
+
+    @BeforeEach
+    void setUp() {
+        advice = new CompressedBodyAdvice();
+        objectMapper = new ObjectMapper();
+        ReflectionTestUtils.setField(advice, "enabled", true);
+        ReflectionTestUtils.setField(advice, "minSize", 10);
+        ReflectionTestUtils.setField(advice, "objectMapper", objectMapper);
+        cache = new ResponseEntityCache("compressed");
+    }
+
+    private static MockHttpServletRequest request(String acceptEncoding) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test/1");
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        return request;
+    }
+
+    private ResponseEntity<Payload> put(String etag) {
+        Payload payload = new Payload();
+        char[] value = new char[100];
+        Arrays.fill(value, 'a');
+        payload.value = new String(value);
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setETag(etag);
+        }
+        cache.putCache(URL, Payload.class, ResponseEntity.ok().headers(headers).body(payload), 1);
+        return cache.getCache(URL, Payload.class, 1);
+    }
+
+    // Response served by the handler for the prepared response.
+    private Object serve(MockHttpServletRequest request, ResponseEntity<?> response) {
+        CacheValue value = cache.getCacheValue(URL, Payload.class, 1);
+        advice.prepare(request, cache, value, response);
+        return ReflectionTestUtils.invokeMethod(advice, "getCompressedResponse", request, response);
+    }
+
+    @Test
+    void servesTheCompressedBody() throws IOException {
+        ResponseEntity<Payload> response = put(null);
+        ResponseEntity<?> served = (ResponseEntity<?>) serve(request("deflate, gzip"), response);
+
+        byte[] compressed = (byte[]) served.getBody();
+        assertEquals("gzip", served.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(compressed.length, served.getHeaders().getContentLength());
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, served.getHeaders().getFirst(HttpHeaders.VARY));
+        byte[] json = StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        assertArrayEquals(objectMapper.writeValueAsBytes(response.getBody()), json);
+        // Kept in the cache value for the next hits.
+        assertArrayEquals(compressed, cache.getCacheValue(URL, Payload.class, 1).getCompressedBody());
+    }
+
+    @Test
+    void servesTheResponseToTheCallersNotAcceptingGzip() {
+        ResponseEntity<Payload> response = put(null);
+
+        assertSame(response, serve(request(null), response));
+        assertSame(response, serve(request("gzip;q=0"), response));
+    }
+
+    // The gzip representation does not share the strong validator of the identity
+    // representation.
+    @Test
+    void givesTheCompressedBodyItsOwnEtag() {
+        ResponseEntity<?> served = (ResponseEntity<?>) serve(request("gzip"), put(ETAG));
+        assertEquals("\"v1-gzip\"", served.getHeaders().getETag());
+
+        served = (ResponseEntity<?>) serve(request("gzip"), put("W/" + ETAG));
+        assertEquals("W/" + ETAG, served.getHeaders().getETag());
+    }
+
+}
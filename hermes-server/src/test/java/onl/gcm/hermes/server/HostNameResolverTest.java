@@ -0,0 +1,95 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class HostNameResolverTest {
+
+    private static final String ADDRESS = "127.0.0.1";
+    private static final int MAX_SIZE = 2;
+
+    private HostNameResolver resolver;
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        resolver = new HostNameResolver();
+        meterRegistry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(resolver, "ttl", 60000L);
+        ReflectionTestUtils.setField(resolver, "negativeTtl", 60000L);
+        ReflectionTestUtils.setField(resolver, "maxSize", MAX_SIZE);
+        ReflectionTestUtils.setField(resolver, "threads", 1);
+        ReflectionTestUtils.setField(resolver, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.invokeMethod(resolver, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(resolver, "destroy");
+    }
+
+    // The first request gets the address at once, the next ones the host name
+    // resolved in the background.
+    @Test
+    void resolvesInTheBackground() throws InterruptedException {
+        assertEquals(ADDRESS, resolver.resolve(ADDRESS));
+        waitForSize(1);
+
+        String hostName = resolver.resolve(ADDRESS);
+        assertEquals(hostName, resolver.resolve(ADDRESS));
+        assertEquals(1, resolver.getMissCount());
+        assertEquals(2, resolver.getHitCount());
+        assertEquals(1, resolver.getSize());
+        assertEquals(1, meterRegistry.get("hermes.dns.cache.misses").functionCounter().count());
+        assertEquals(2, meterRegistry.get("hermes.dns.cache.hits").functionCounter().count());
+        assertEquals(1, meterRegistry.get("hermes.dns.cache.size").gauge().value());
+    }
+
+    // Concurrent misses of an address resolve it once.
+    @Test
+    void resolvesAPendingAddressOnce() throws InterruptedException {
+        resolver.resolve(ADDRESS);
+        resolver.resolve(ADDRESS);
+        waitForSize(1);
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils.getField(resolver, "executor");
+        assertEquals(1, executor.getTaskCount());
+        assertEquals(1, resolver.getSize());
+    }
+
+    // The cache never holds more than its maximum size.
+    @Test
+    void staysWithinItsMaximumSize() throws InterruptedException {
+        resolver.resolve("127.0.0.2");
+        resolver.resolve("127.0.0.3");
+        resolver.resolve("127.0.0.4");
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils.getField(resolver, "executor");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((executor.getCompletedTaskCount() < 3) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(3, executor.getCompletedTaskCount());
+        assertEquals(MAX_SIZE, resolver.getSize());
+    }
+
+    private void waitForSize(int size) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((resolver.getSize() < size) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertTrue(resolver.getSize() >= size);
+    }
+
+}
@@ -0,0 +1,48 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyTrackerTest {
+
+    @Test
+    void needsTheMinimumNumberOfCalls() {
+        LatencyTracker tracker = new LatencyTracker(100, 10);
+        for (int i = 1; i < 10; i++) {
+            tracker.record(i);
+        }
+
+        assertEquals(-1, tracker.getPercentile(0.5));
+        tracker.record(10);
+        assertEquals(5, tracker.getPercentile(0.5));
+    }
+
+    @Test
+    void computesThePercentilesOfTheRecordedCalls() {
+        LatencyTracker tracker = new LatencyTracker(100, 1);
+        for (int i = 100; i >= 1; i--) {
+            tracker.record(i);
+        }
+
+        assertEquals(50, tracker.getPercentile(0.5));
+        assertEquals(95, tracker.getPercentile(0.95));
+        assertEquals(100, tracker.getPercentile(1));
+        assertEquals(1, tracker.getPercentile(0));
+    }
+
+    // Only the last calls of the window count.
+    @Test
+    void forgetsTheOldestCalls() {
+        LatencyTracker tracker = new LatencyTracker(10, 1);
+        for (int i = 0; i < 10; i++) {
+            tracker.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            tracker.record(1);
+        }
+
+        assertEquals(1, tracker.getPercentile(1));
+    }
+
+}
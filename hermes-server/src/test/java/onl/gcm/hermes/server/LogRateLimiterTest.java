@@ -0,0 +1,67 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class LogRateLimiterTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    void logsEachKeyOncePerInterval() {
+        LogRateLimiter limiter = new LogRateLimiter(ResponseEntityCache.ONE_HOUR_LIFETIME);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(2, limiter.getSuppressedCount());
+    }
+
+    @Test
+    void logsEveryOccurrenceWithoutInterval() {
+        LogRateLimiter limiter = new LogRateLimiter(0);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertEquals(0, limiter.getSuppressedCount());
+    }
+
+    // Only one of concurrent callers logs the message.
+    @Test
+    void logsOnceForConcurrentCallers() throws Exception {
+        LogRateLimiter limiter = new LogRateLimiter(ResponseEntityCache.ONE_HOUR_LIFETIME);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return limiter.tryAcquire("a");
+                }));
+            }
+            start.countDown();
+
+            int acquired = 0;
+            for (Future<Boolean> result : results) {
+                acquired += result.get() ? 1 : 0;
+            }
+            assertEquals(1, acquired);
+            assertEquals(THREADS - 1, limiter.getSuppressedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package onl.gcm.hermes.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Time source only moved forward by the tests.
+public class ManualTimeSource implements TimeSource {
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final AtomicLong currentTimeMillis = new AtomicLong(System.currentTimeMillis());
+
+    // Duration in ms.
+    public void advance(long duration) {
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(duration));
+        currentTimeMillis.addAndGet(duration);
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanoTime.get();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return currentTimeMillis.get();
+    }
+
+}
@@ -0,0 +1,142 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RequestCoalescerTest {
+
+    private static final int CALLERS = 8;
+    private static final String KEY = "http://upstream/test/1";
+
+    private RequestCoalescer coalescer;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        coalescer = new RequestCoalescer();
+        executor = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    // Concurrent misses of one key make a single upstream call, whose result every
+    // caller gets.
+    @Test
+    void coalescesConcurrentCalls() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object response = new Object();
+
+        List<Future<Object>> results = new ArrayList<>();
+        results.add(executor.submit(() -> coalescer.execute(KEY, () -> {
+            calls.incrementAndGet();
+            leaderStarted.countDown();
+            await(release);
+            return response;
+        })));
+        leaderStarted.await(5, TimeUnit.SECONDS);
+        for (int i = 1; i < CALLERS; i++) {
+            results.add(executor.submit(() -> coalescer.execute(KEY, () -> {
+                calls.incrementAndGet();
+                return new Object();
+            })));
+        }
+        waitForCollapsed(CALLERS - 1);
+        release.countDown();
+
+        for (Future<Object> result : results) {
+            assertSame(response, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, coalescer.getCallCount());
+        assertEquals(CALLERS - 1, coalescer.getCollapsedCount());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    // The followers get the exception of the leader as is.
+    @Test
+    void sharesTheExceptionOfTheLeader() throws Exception {
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("upstream down");
+
+        Future<Object> leader = executor.submit(() -> coalescer.execute(KEY, () -> {
+            leaderStarted.countDown();
+            await(release);
+            throw failure;
+        }));
+        leaderStarted.await(5, TimeUnit.SECONDS);
+        Future<Throwable> follower = executor.submit(
+                () -> assertThrows(IllegalStateException.class, () -> coalescer.execute(KEY, Object::new)));
+        waitForCollapsed(1);
+        release.countDown();
+
+        assertSame(failure, follower.get(5, TimeUnit.SECONDS));
+        assertEquals(failure, assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS)).getCause());
+    }
+
+    // Once the call completed, the next call of the key is executed again.
+    @Test
+    void executesAgainOnceCompleted() {
+        assertEquals("first", coalescer.execute(KEY, () -> "first"));
+        assertEquals("second", coalescer.execute(KEY, () -> "second"));
+        assertEquals(2, coalescer.getCallCount());
+        assertEquals(0, coalescer.getCollapsedCount());
+    }
+
+    @Test
+    void coalescesConcurrentAsyncCalls() throws Exception {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(coalescer.executeAsync(KEY, () -> {
+                calls.incrementAndGet();
+                return upstream;
+            }));
+        }
+        upstream.complete("response");
+
+        for (CompletableFuture<String> result : results) {
+            assertEquals("response", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    private void waitForCollapsed(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((coalescer.getCollapsedCount() < count) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+
+class ResponseEntityCacheSnapshotTest {
+
+    private static final String URL = "http://upstream/test/{id}";
+    private static final String ETAG = "\"v1\"";
+    // Snapshots are only saved explicitly by the tests.
+    private static final long SNAPSHOT_DELAY = ResponseEntityCache.ONE_HOUR_LIFETIME;
+
+    // Response type whose JSON body is decoded when the snapshot is loaded.
+    public static class Payload {
+        public String value;
+    }
+
+    @TempDir
+    Path directory;
+
+    private final ManualTimeSource timeSource = new ManualTimeSource();
+
+    // Cache of a server restarted after downtime ms, loading the snapshot of the
+    // previous one.
+    private ResponseEntityCache restart(ResponseEntityCache previous, long lifetime, long downtime) {
+        previous.saveSnapshot();
+        timeSource.advance(downtime);
+        ResponseEntityCache cache = new ResponseEntityCache(previous.getName(), lifetime);
+        cache.setTimeSource(timeSource);
+        cache.setOffHeap(previous.isOffHeap());
+        cache.setSnapshot(directory.resolve(previous.getName()), SNAPSHOT_DELAY);
+        return cache;
+    }
+
+    private ResponseEntityCache newCache(String name, long lifetime) {
+        ResponseEntityCache cache = new ResponseEntityCache(name, lifetime);
+        cache.setTimeSource(timeSource);
+        cache.setSnapshot(directory.resolve(name), SNAPSHOT_DELAY);
+        return cache;
+    }
+
+    @Test
+    void restoresTheEntries() {
+        ResponseEntityCache cache = newCache("restore", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 1"), 1);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 2"), 2);
+
+        ResponseEntityCache restarted = restart(cache, ResponseEntityCache.ONE_HOUR_LIFETIME, 0);
+        assertEquals(2, restarted.getSize());
+        assertEquals("test 1", restarted.getCache(URL, String.class, 1).getBody());
+        assertEquals("test 2", restarted.getCache(URL, String.class, 2).getBody());
+    }
+
+    @Test
+    void restoresTheEntriesOffHeap() {
+        ResponseEntityCache cache = newCache("offHeap", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        cache.setOffHeap(true);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 1"), 1);
+
+        ResponseEntityCache restarted = restart(cache, ResponseEntityCache.ONE_HOUR_LIFETIME, 0);
+        assertEquals("test 1", restarted.getCache(URL, String.class, 1).getBody());
+        assertEquals(cache.getWeight(), restarted.getWeight());
+    }
+
+    // The time the server was down counts in the age of the entries.
+    @Test
+    void countsTheDowntimeInTheAge() {
+        ResponseEntityCache cache = newCache("downtime", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 1"), 1);
+
+        ResponseEntityCache restarted = restart(cache, ResponseEntityCache.ONE_HOUR_LIFETIME, 200);
+        CacheValue value = restarted.getCacheValue(URL, String.class, 1);
+        assertNotNull(value);
+        assertEquals(200, restarted.getAge(value));
+    }
+
+    // Entries whose lifetime ended while the server was down are not restored.
+    @Test
+    void dropsTheEntriesExpiredWhileDown() {
+        ResponseEntityCache cache = newCache("expired", 100);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 1"), 1);
+
+        ResponseEntityCache restarted = restart(cache, 100, 200);
+        assertNull(restarted.getCacheValue(URL, String.class, 1));
+        assertEquals(0, restarted.getSize());
+    }
+
+    // Revalidatable entries restored from a snapshot keep their validators.
+    @Test
+    void restoresTheValidators() {
+        ResponseEntityCache cache = newCache("validators", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(ETAG);
+        cache.putCache(URL, String.class, ResponseEntity.ok().headers(headers).body("test 1"), 1);
+
+        ResponseEntityCache restarted = restart(cache, ResponseEntityCache.ONE_HOUR_LIFETIME, 0);
+        assertEquals(ETAG, restarted.getCacheValue(URL, String.class, 1).getEtag());
+    }
+
+    // A file that is not a snapshot is ignored.
+    @Test
+    void ignoresAGarbageSnapshot() throws IOException {
+        byte[] garbage = new byte[1000];
+        new Random(0).nextBytes(garbage);
+        Files.write(directory.resolve("garbage"), garbage);
+
+        ResponseEntityCache cache = newCache("garbage", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        assertEquals(0, cache.getSize());
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 1"), 1);
+        assertEquals("test 1", cache.getCache(URL, String.class, 1).getBody());
+    }
+
+    // A truncated snapshot restores the entries before the truncation.
+    @Test
+    void loadsATruncatedSnapshot() throws IOException {
+        ResponseEntityCache cache = newCache("truncated", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 1"), 1);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 2"), 2);
+        cache.saveSnapshot();
+        Path file = directory.resolve("truncated");
+        byte[] bytes = Files.readAllBytes(file);
+        // Without the end mark and the last byte of the last response.
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 2));
+
+        ResponseEntityCache restarted = new ResponseEntityCache("truncated");
+        restarted.setSnapshot(file, SNAPSHOT_DELAY);
+        assertEquals(1, restarted.getSize());
+    }
+
+    // A corrupt response length stops the loading instead of failing it.
+    @Test
+    void loadsASnapshotWithACorruptLength() throws IOException {
+        ResponseEntityCache cache = newCache("length", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        ResponseEntity<String> response = ResponseEntity.ok("test 1");
+        cache.putCache(URL, String.class, response, 1);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 2"), 2);
+        cache.saveSnapshot();
+        Path file = directory.resolve("length");
+        byte[] bytes = Files.readAllBytes(file);
+        // Length of the last response, followed by the response and the end mark.
+        int offset = bytes.length - 1 - ResponseEntityCodec.encode(response).length - Integer.BYTES;
+        Arrays.fill(bytes, offset, offset + Integer.BYTES, (byte) 0xFF);
+        Files.write(file, bytes);
+
+        ResponseEntityCache restarted = new ResponseEntityCache("length");
+        restarted.setSnapshot(file, SNAPSHOT_DELAY);
+        assertEquals(1, restarted.getSize());
+    }
+
+    // An entry whose body can no longer be decoded, such as after a change of its
+    // response type, is skipped.
+    @Test
+    void skipsTheEntriesThatCannotBeDecoded() throws IOException {
+        ResponseEntityCache cache = newCache("decoding", ResponseEntityCache.ONE_HOUR_LIFETIME);
+        Payload payload = new Payload();
+        payload.value = "decoding";
+        cache.putCache(URL, Payload.class, ResponseEntity.ok(payload), 1);
+        cache.putCache(URL, String.class, ResponseEntity.ok("test 2"), 2);
+        cache.saveSnapshot();
+        Path file = directory.resolve("decoding");
+        byte[] bytes = Files.readAllBytes(file);
+        byte[] json = "\"value\"".getBytes(StandardCharsets.UTF_8);
+        int offset = indexOf(bytes, json);
+        assertTrue(offset >= 0);
+        bytes[offset] = '#';
+        Files.write(file, bytes);
+
+        ResponseEntityCache restarted = new ResponseEntityCache("decoding");
+        restarted.setSnapshot(file, SNAPSHOT_DELAY);
+        assertEquals(1, restarted.getSize());
+        assertNull(restarted.getCacheValue(URL, Payload.class, 1));
+        assertEquals("test 2", restarted.getCache(URL, String.class, 2).getBody());
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
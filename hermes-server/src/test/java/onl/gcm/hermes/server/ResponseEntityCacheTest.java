@@ -0,0 +1,191 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+
+import onl.gcm.hermes.server.ResponseEntityCache.CacheValue;
+import onl.gcm.hermes.server.ResponseEntityCache.Freshness;
+
+class ResponseEntityCacheTest {
+
+    private static final String URL = "http://upstream/test/{id}";
+    private static final int BODY_LENGTH = 1000;
+    private static final String ETAG = "\"v1\"";
+
+    private static ResponseEntity<String> response(char c) {
+        char[] body = new char[BODY_LENGTH];
+        Arrays.fill(body, c);
+        return ResponseEntity.ok(new String(body));
+    }
+
+    private final ManualTimeSource timeSource = new ManualTimeSource();
+
+    private static void put(ResponseEntityCache cache, int id) {
+        cache.putCache(URL, String.class, response('a'), id);
+    }
+
+    @Test
+    void staysWithinItsMaximumNumberOfEntries() {
+        ResponseEntityCache cache = new ResponseEntityCache("entries");
+        cache.setMaxEntries(10);
+        for (int id = 0; id < 100; id++) {
+            put(cache, id);
+            assertTrue(cache.getSize() <= 10);
+        }
+
+        assertEquals(10, cache.getSize());
+        assertEquals(90, cache.getEvictionCount());
+        // The most recent entries are kept.
+        assertNotNull(cache.getCacheValue(URL, String.class, 99));
+        assertNull(cache.getCacheValue(URL, String.class, 0));
+    }
+
+    @Test
+    void staysWithinItsMaximumWeight() {
+        ResponseEntityCache cache = new ResponseEntityCache("weight");
+        put(cache, 0);
+        long entryWeight = cache.getWeight();
+        long maxWeight = 5 * entryWeight + entryWeight / 2;
+        cache.setMaxWeight(maxWeight);
+        for (int id = 1; id < 100; id++) {
+            put(cache, id);
+            assertTrue(cache.getWeight() <= maxWeight);
+        }
+
+        assertEquals(5, cache.getSize());
+        assertEquals(5 * entryWeight, cache.getWeight());
+    }
+
+    // The clock hand gives the entries hit since it last passed a second chance.
+    @Test
+    void evictsTheEntriesNotHitFirst() {
+        ResponseEntityCache cache = new ResponseEntityCache("clock");
+        cache.setMaxEntries(2);
+        put(cache, 1);
+        put(cache, 2);
+        assertNotNull(cache.getCacheValue(URL, String.class, 1));
+        put(cache, 3);
+
+        assertNotNull(cache.getCacheValue(URL, String.class, 1));
+        assertNull(cache.getCacheValue(URL, String.class, 2));
+        assertNotNull(cache.getCacheValue(URL, String.class, 3));
+    }
+
+    // A response heavier than the whole cache is not cached, and the previous
+    // value of its key is removed.
+    @Test
+    void rejectsAResponseHeavierThanTheCache() {
+        ResponseEntityCache cache = new ResponseEntityCache("rejection");
+        cache.putCache(URL, String.class, ResponseEntity.ok("small"), 1);
+        cache.setMaxWeight(2 * cache.getWeight());
+        put(cache, 1);
+
+        assertNull(cache.getCacheValue(URL, String.class, 1));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+        assertEquals(1, cache.getRejectionCount());
+    }
+
+    // The compressed body of an entry counts in the weights.
+    @Test
+    void countsTheCompressedBody() {
+        ResponseEntityCache cache = new ResponseEntityCache("compressed");
+        put(cache, 1);
+        long weight = cache.getWeight();
+        CacheValue value = cache.getCacheValue(URL, String.class, 1);
+        cache.setCompressedBody(value, new byte[100]);
+
+        assertEquals(weight + 100, cache.getWeight());
+        assertEquals(weight + 100, value.getWeight());
+        cache.removeCache(URL, String.class, 1);
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    void removesTheEntriesByTagAndUrl() {
+        ResponseEntityCache cache = new ResponseEntityCache("index");
+        cache.setTags(URL, "tests");
+        put(cache, 1);
+        put(cache, 2);
+        cache.putCache("http://upstream/other", String.class, ResponseEntity.ok("other"));
+
+        cache.removeCacheByTag("tests");
+        assertEquals(1, cache.getSize());
+        cache.removeCacheByUrl("http://upstream/other");
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+    }
+
+    // Past its stale lifetime, an entry can still be served if the upstream server
+    // fails, within its stale-if-error lifetime.
+    @Test
+    void servesExpiredEntriesOnError() {
+        ResponseEntityCache cache = new ResponseEntityCache("staleIfError", 50);
+        cache.setTimeSource(timeSource);
+        cache.setStaleIfErrorLifetime(60000);
+        put(cache, 1);
+        timeSource.advance(100);
+
+        CacheValue value = cache.getCacheValue(URL, String.class, 1);
+        assertNotNull(value);
+        assertEquals(Freshness.EXPIRED, cache.getFreshness(value));
+        assertTrue(cache.isServableOnError(value));
+        assertNull(cache.getCache(URL, String.class, 1));
+    }
+
+    // Servable on error up to its hard lifetime (lifetime + stale lifetime), then
+    // removed.
+    @Test
+    void removesEntriesPastTheirHardLifetime() {
+        ResponseEntityCache cache = new ResponseEntityCache("hardLifetime", 100);
+        cache.setTimeSource(timeSource);
+        cache.setStaleLifetime(200);
+        put(cache, 1);
+        CacheValue value = cache.getCacheValue(URL, String.class, 1);
+        timeSource.advance(101);
+        assertEquals(Freshness.STALE, cache.getFreshness(value));
+        timeSource.advance(199);
+        assertTrue(cache.isServableOnError(value));
+        assertNotNull(cache.getCacheValue(URL, String.class, 1));
+        timeSource.advance(1);
+
+        assertFalse(cache.isServableOnError(value));
+        assertNull(cache.getCacheValue(URL, String.class, 1));
+    }
+
+    // An expired entry with validators is kept for its revalidation lifetime, and
+    // made fresh again by a 304 Not Modified response.
+    @Test
+    void revalidatesExpiredEntries() {
+        ResponseEntityCache cache = new ResponseEntityCache("revalidation", 50);
+        cache.setTimeSource(timeSource);
+        cache.setRevalidationLifetime(ResponseEntityCache.ONE_HOUR_LIFETIME);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(ETAG);
+        cache.putCache(URL, String.class, ResponseEntity.ok().headers(headers).body("test 1"), 1);
+        timeSource.advance(100);
+
+        CacheValue value = cache.getCacheValue(URL, String.class, 1);
+        assertNotNull(value);
+        assertEquals(Freshness.EXPIRED, cache.getFreshness(value));
+        assertEquals(ETAG, value.getEtag());
+        assertTrue(cache.revalidate(value));
+
+        CacheValue revalidated = cache.getCacheValue(URL, String.class, 1);
+        assertEquals(Freshness.FRESH, cache.getFreshness(revalidated));
+        assertEquals("test 1", revalidated.getResponse().getBody());
+        assertEquals(1, cache.getRevalidationCount());
+        // The replaced value cannot be revalidated anymore.
+        assertFalse(cache.revalidate(value));
+    }
+
+}
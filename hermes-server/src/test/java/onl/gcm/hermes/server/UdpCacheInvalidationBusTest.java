@@ -0,0 +1,132 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class UdpCacheInvalidationBusTest {
+
+    private static final String ADDRESS = "127.0.0.1";
+    private static final String SECRET = "secret";
+    private static final String URL = "http://upstream/test/{id}";
+    private static final long TIMEOUT = 5;
+
+    private final List<UdpCacheInvalidationBus> buses = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        buses.forEach(bus -> ReflectionTestUtils.invokeMethod(bus, "destroy"));
+    }
+
+    private static int getFreePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(ADDRESS, 0))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private UdpCacheInvalidationBus start(int port, String secret, int... peerPorts) {
+        String[] peers = new String[peerPorts.length];
+        for (int i = 0; i < peerPorts.length; i++) {
+            peers[i] = ADDRESS + ":" + peerPorts[i];
+        }
+        UdpCacheInvalidationBus bus = new UdpCacheInvalidationBus();
+        ReflectionTestUtils.setField(bus, "address", ADDRESS);
+        ReflectionTestUtils.setField(bus, "port", port);
+        ReflectionTestUtils.setField(bus, "peers", peers);
+        ReflectionTestUtils.setField(bus, "secret", secret);
+        ReflectionTestUtils.invokeMethod(bus, "init");
+        buses.add(bus);
+        return bus;
+    }
+
+    private static BlockingQueue<CacheInvalidation> subscribe(UdpCacheInvalidationBus bus) {
+        BlockingQueue<CacheInvalidation> received = new LinkedBlockingQueue<>();
+        bus.subscribe(received::add);
+        return received;
+    }
+
+    @Test
+    void deliversTheSignedInvalidations() throws Exception {
+        int port = getFreePort();
+        int peerPort = getFreePort();
+        UdpCacheInvalidationBus bus = start(port, SECRET, peerPort);
+        BlockingQueue<CacheInvalidation> received = subscribe(start(peerPort, SECRET, port));
+
+        bus.publish(CacheInvalidation.key("cache", URL, String.class, new Object[] { "a", 1, 2L }));
+
+        CacheInvalidation invalidation = received.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull(invalidation);
+        assertEquals(CacheInvalidation.Type.KEY, invalidation.getType());
+        assertEquals("cache", invalidation.getCacheName());
+        assertEquals(URL, invalidation.getUrl());
+        assertEquals(String.class.getName(), invalidation.getResponseType());
+        assertArrayEquals(new Object[] { "a", 1, 2L }, invalidation.getUriVariables());
+    }
+
+    // The invalidation signed with another secret is dropped: only the next one,
+    // from another peer, is received.
+    @Test
+    void dropsTheInvalidationsWithAWrongSignature() throws Exception {
+        int port = getFreePort();
+        int otherPort = getFreePort();
+        int peerPort = getFreePort();
+        UdpCacheInvalidationBus bus = start(port, "other secret", peerPort);
+        UdpCacheInvalidationBus other = start(otherPort, SECRET, peerPort);
+        BlockingQueue<CacheInvalidation> received = subscribe(start(peerPort, SECRET, port, otherPort));
+
+        bus.publish(CacheInvalidation.tag("cache", "forged"));
+        other.publish(CacheInvalidation.tag("cache", "signed"));
+
+        assertEquals("signed", received.poll(TIMEOUT, TimeUnit.SECONDS).getTag());
+        assertEquals(0, received.size());
+    }
+
+    // The invalidation from a node that is not a peer is dropped, even if signed
+    // with the secret.
+    @Test
+    void dropsTheInvalidationsFromUnknownSources() throws Exception {
+        int port = getFreePort();
+        int otherPort = getFreePort();
+        int peerPort = getFreePort();
+        UdpCacheInvalidationBus bus = start(port, SECRET, peerPort);
+        UdpCacheInvalidationBus other = start(otherPort, SECRET, peerPort);
+        BlockingQueue<CacheInvalidation> received = subscribe(start(peerPort, SECRET, otherPort));
+
+        bus.publish(CacheInvalidation.tag("cache", "unknown"));
+        other.publish(CacheInvalidation.tag("cache", "peer"));
+
+        assertEquals("peer", received.poll(TIMEOUT, TimeUnit.SECONDS).getTag());
+        assertEquals(0, received.size());
+    }
+
+    // An unsigned invalidation is dropped by a node expecting a signature.
+    @Test
+    void dropsTheUnsignedInvalidations() throws Exception {
+        int port = getFreePort();
+        int otherPort = getFreePort();
+        int peerPort = getFreePort();
+        UdpCacheInvalidationBus bus = start(port, "", peerPort);
+        UdpCacheInvalidationBus other = start(otherPort, SECRET, peerPort);
+        BlockingQueue<CacheInvalidation> received = subscribe(start(peerPort, SECRET, port, otherPort));
+
+        bus.publish(CacheInvalidation.clear("unsigned"));
+        other.publish(CacheInvalidation.clear("signed"));
+
+        assertEquals("signed", received.poll(TIMEOUT, TimeUnit.SECONDS).getCacheName());
+        assertEquals(0, received.size());
+    }
+
+}
@@ -0,0 +1,181 @@
+package onl.gcm.hermes.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import onl.gcm.hermes.client.HermesClient;
+
+class UpstreamGuardTest {
+
+    private static final String URL = "http://upstream/test/{id}";
+    private static final String ALIVE_URL = "http://upstream/alive";
+    private static final int MAX_CONCURRENT_CALLS = 2;
+    private static final int LATENCY_MINIMUM_CALLS = 5;
+
+    private UpstreamGuard guard;
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        guard = new UpstreamGuard();
+        meterRegistry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(guard, "circuitWindowSize", 100);
+        ReflectionTestUtils.setField(guard, "circuitMinimumCalls", 100);
+        ReflectionTestUtils.setField(guard, "circuitFailureRateThreshold", 50);
+        ReflectionTestUtils.setField(guard, "circuitSlowCallDuration", 60000L);
+        ReflectionTestUtils.setField(guard, "circuitSlowCallRateThreshold", 100);
+        ReflectionTestUtils.setField(guard, "circuitOpenDuration", 60000L);
+        ReflectionTestUtils.setField(guard, "bulkheadMaxConcurrentCalls", MAX_CONCURRENT_CALLS);
+        ReflectionTestUtils.setField(guard, "bulkheadMaxWait", 0L);
+        ReflectionTestUtils.setField(guard, "latencyWindowSize", 100);
+        ReflectionTestUtils.setField(guard, "latencyMinimumCalls", LATENCY_MINIMUM_CALLS);
+        ReflectionTestUtils.setField(guard, "adaptiveTimeout", false);
+        ReflectionTestUtils.setField(guard, "hedgeEnabled", true);
+        ReflectionTestUtils.setField(guard, "hedgePercentile", 0.95);
+        ReflectionTestUtils.setField(guard, "hedgeMaxPercent", 100);
+        ReflectionTestUtils.setField(guard, "hermesClient", Mockito.mock(HermesClient.class));
+        ReflectionTestUtils.setField(guard, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.invokeMethod(guard, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(guard, "destroy");
+    }
+
+    // Fast calls, so that the next ones are hedged at once if still pending.
+    private void warmUp() {
+        for (int i = 0; i < LATENCY_MINIMUM_CALLS; i++) {
+            guard.executeAsync(URL, () -> CompletableFuture.completedFuture("fast")).join();
+        }
+    }
+
+    private Bulkhead getBulkhead() {
+        return guard.getUpstreams().iterator().next().getBulkhead();
+    }
+
+    @Test
+    void rejectsTheCallsBeyondTheBulkhead() {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        for (int i = 0; i < MAX_CONCURRENT_CALLS; i++) {
+            guard.executeAsync(URL, () -> pending);
+        }
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> guard.executeAsync(URL, () -> CompletableFuture.completedFuture("rejected")).get());
+        assertInstanceOf(UpstreamUnavailableException.class, e.getCause());
+        pending.complete("done");
+        assertEquals(0, getBulkhead().getActiveCalls());
+    }
+
+    // A slow attempt is hedged: the first response wins and the other attempt is
+    // cancelled.
+    @Test
+    void hedgesASlowCall() throws Exception {
+        warmUp();
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String response = guard.executeHedgedAsync(URL,
+                () -> attempts.getAndIncrement() == 0 ? slow : CompletableFuture.completedFuture("hedge"))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals("hedge", response);
+        assertEquals(2, attempts.get());
+        assertTrue(slow.isCancelled());
+        assertEquals(1, meterRegistry.get("hermes.upstream.hedges").functionCounter().count());
+        assertEquals(0, getBulkhead().getActiveCalls());
+    }
+
+    // A blocking attempt that lost the hedge holds its permit until its thread
+    // returns, even if it ignores the interruption.
+    @Test
+    void holdsThePermitOfALosingBlockingAttempt() throws Exception {
+        warmUp();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch returned = new CountDownLatch(1);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String response = guard.executeHedged(URL, () -> {
+            if (attempts.getAndIncrement() > 0) {
+                return "hedge";
+            }
+            awaitUninterruptibly(release);
+            returned.countDown();
+            return "slow";
+        });
+
+        assertEquals("hedge", response);
+        assertEquals(1, getBulkhead().getActiveCalls());
+        release.countDown();
+        assertTrue(returned.await(5, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((getBulkhead().getActiveCalls() > 0) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, getBulkhead().getActiveCalls());
+    }
+
+    // Hedges are not sent before the latency of enough calls is known.
+    @Test
+    void doesNotHedgeWithoutEnoughCalls() {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletableFuture<String> response = guard.executeHedgedAsync(URL, () -> {
+            attempts.incrementAndGet();
+            return slow;
+        });
+
+        assertEquals(1, attempts.get());
+        assertFalse(response.isDone());
+        slow.complete("slow");
+        assertEquals("slow", response.join());
+    }
+
+    // Registering an upstream again replaces its meters rather than keeping those
+    // of the previous one.
+    @Test
+    void replacesTheMetersOfARegisteredUpstream() {
+        guard.register(URL, ALIVE_URL);
+        guard.register(URL, ALIVE_URL);
+
+        assertEquals(1, meterRegistry.find("hermes.upstream.timeout").gauges().size());
+        assertEquals(0, meterRegistry.get("hermes.upstream.timeout").gauge().value());
+        assertEquals(1, meterRegistry.find("hermes.upstream.hedges").functionCounters().size());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}